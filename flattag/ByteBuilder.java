@@ -0,0 +1,258 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A growable buffer of UTF-8 bytes which is decoded only when it is written.
+ */
+public class ByteBuilder {
+
+    private byte[] bytes;
+    private int length;
+    private ByteBuffer view;
+    private CharBuffer chars;
+    private final CharsetDecoder decoder;
+
+    public ByteBuilder() {
+        this(256);
+    }
+
+    public ByteBuilder(int capacity) {
+        bytes = new byte[capacity];
+        length = 0;
+        view = ByteBuffer.wrap(bytes);
+        chars = CharBuffer.allocate(capacity);
+        decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public void clear() {
+        length = 0;
+    }
+
+    public void setLength(int newLength) {
+        length = newLength;
+    }
+
+    /**
+     * removes the first count bytes.
+     */
+    public void removeFirst(int count) {
+        System.arraycopy(bytes, count, bytes, 0, length - count);
+        length -= count;
+    }
+
+    /**
+     * returns the length without the last sequence of UTF-8 if more bytes of the sequence may follow.
+     */
+    public int completeLength() {
+        for(int i = length - 1; i >= 0 && i >= length - 3; i--) {
+            int b = bytes[i] & 0xff;
+
+            if(b < 0x80) {
+                break;
+            } else if(b >= 0xc0) {
+                int sequence = b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : 2;
+
+                return i + sequence > length ? i : length;
+            }
+        }
+        return length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity > bytes.length) {
+            byte[] newBytes = new byte[Math.max(capacity, bytes.length * 2)];
+
+            System.arraycopy(bytes, 0, newBytes, 0, length);
+            bytes = newBytes;
+            view = ByteBuffer.wrap(bytes);
+        }
+    }
+
+    public void append(int b) {
+        ensureCapacity(length + 1);
+        bytes[length++] = (byte)b;
+    }
+
+    public void append(byte[] b) {
+        append(b, 0, b.length);
+    }
+
+    public void append(byte[] b, int offset, int len) {
+        ensureCapacity(length + len);
+        System.arraycopy(b, offset, bytes, length, len);
+        length += len;
+    }
+
+    public void append(ByteBuffer b, int index, int len) {
+        ensureCapacity(length + len);
+        b.get(index, bytes, length, len);
+        length += len;
+    }
+
+    public void append(ByteBuilder b) {
+        append(b.bytes, 0, b.length);
+    }
+
+    public void append(ByteBuilder b, int from, int to) {
+        append(b.bytes, from, to - from);
+    }
+
+    public int byteAt(int index) {
+        return bytes[index] & 0xff;
+    }
+
+    public boolean contentEquals(byte[] b) {
+        return contentEquals(0, length, b);
+    }
+
+    public boolean contentEquals(int from, int to, byte[] b) {
+        if(b.length != to - from || to > length) {
+            return false;
+        }
+        for(int i = 0; i < b.length; i++) {
+            if(bytes[from + i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static int hash(byte[] b, int len) {
+        int result = 0x811c9dc5;
+
+        for(int i = 0; i < len; i++) {
+            result = (result ^ b[i]) * 0x01000193;
+        }
+        return result ^ (result >>> 16);
+    }
+
+    public int hash() {
+        return hash(bytes, length);
+    }
+
+    public byte[] toByteArray() {
+        byte[] result = new byte[length];
+
+        System.arraycopy(bytes, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * decodes bytes from index from to index to into out.
+     * out must have room for to - from chars.
+     */
+    public void decodeTo(int from, int to, CharBuffer out) {
+        char[] array = out.array();
+        int position = out.position();
+        int i;
+
+        for(i = from; i < to && bytes[i] >= 0; i++) {
+            array[position++] = (char)bytes[i];
+        }
+        out.position(position);
+        if(i < to) {
+            view.limit(to).position(i);
+            decoder.reset();
+            decoder.decode(view, out, true);
+            decoder.flush(out);
+        }
+    }
+
+    public void writeTo(Writer writer, int from, int to) throws IOException {
+        if(chars.capacity() < to - from) {
+            chars = CharBuffer.allocate(Math.max(to - from, chars.capacity() * 2));
+        }
+        chars.clear();
+        decodeTo(from, to, chars);
+        writer.write(chars.array(), 0, chars.position());
+    }
+
+    /*
+     * returns true if bytes from index from to index to are valid UTF-8, which the decoder would not replace.
+     */
+    private boolean isUtf8(int from, int to) {
+        for(int i = from; i < to;) {
+            int b = bytes[i] & 0xff, trail;
+
+            if(b < 0x80) {
+                i++;
+                continue;
+            } else if(b >= 0xc2 && b <= 0xdf) {
+                trail = 1;
+            } else if(b >= 0xe0 && b <= 0xef) {
+                trail = 2;
+            } else if(b >= 0xf0 && b <= 0xf4) {
+                trail = 3;
+            } else {
+                return false;
+            }
+            if(i + trail >= to) {
+                return false;
+            }
+
+            int second = bytes[i + 1] & 0xff;
+
+            if((b == 0xe0 && second < 0xa0) || (b == 0xed && second > 0x9f)
+                    || (b == 0xf0 && second < 0x90) || (b == 0xf4 && second > 0x8f)) {
+                return false;
+            }
+            for(int k = 1; k <= trail; k++) {
+                if((bytes[i + k] & 0xc0) != 0x80) {
+                    return false;
+                }
+            }
+            i += trail + 1;
+        }
+        return true;
+    }
+
+    /**
+     * writes bytes from index from to index to as they are if they are valid UTF-8 and the sink writes UTF-8.
+     */
+    public void writeTo(ByteSink sink, int from, int to) throws IOException {
+        if(sink.isUtf8() && isUtf8(from, to)) {
+            sink.write(bytes, from, to - from);
+        } else {
+            writeTo((Writer)sink, from, to);
+        }
+    }
+
+    /**
+     * writes the bytes as they are, which need not be UTF-8.
+     */
+    public void writeRawTo(ByteSink sink) throws IOException {
+        sink.write(bytes, 0, length);
+    }
+
+    public void writeTo(Writer writer) throws IOException {
+        writeTo(writer, 0, length);
+    }
+
+    public String toString(int from, int to) {
+        return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    public String toString() {
+        return toString(0, length);
+    }
+
+}
@@ -0,0 +1,228 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Searches bytes of a buffer eight bytes at a time (SWAR).
+ * Buffers must be in little endian order.
+ */
+public class ByteScanner {
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOWS = 0x7f7f7f7f7f7f7f7fL;
+    private static final long LT = '<' * ONES;
+    private static final long LF = '\n' * ONES;
+    private static final long TAB = '\t' * ONES;
+    private static final long AMP = '&' * ONES;
+    private static final long GT = '>' * ONES;
+    private static final long QUOT = '\"' * ONES;
+    private static final long APOS = '\'' * ONES;
+
+    private ByteScanner() {}
+
+    public static ByteBuffer prepare(ByteBuffer buffer) {
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /*
+     * sets the high bit of exactly the bytes of word which are zero.
+     */
+    private static long zeros(long word) {
+        return ~(((word & LOWS) + LOWS) | word | LOWS);
+    }
+
+    private static int firstByte(int index, long mask) {
+        return index + (Long.numberOfTrailingZeros(mask) >>> 3);
+    }
+
+    /**
+     * returns the index of the first '<', newline or tab between from and to, or to if not found.
+     */
+    public static int indexOfText(ByteBuffer buffer, int from, int to) {
+        int i;
+
+        for(i = from; i + 8 <= to; i += 8) {
+            long word = buffer.getLong(i);
+            long mask = zeros(word ^ LT) | zeros(word ^ LF) | zeros(word ^ TAB);
+
+            if(mask != 0) {
+                return firstByte(i, mask);
+            }
+        }
+        for(; i < to; i++) {
+            byte b = buffer.get(i);
+
+            if(b == '<' || b == '\n' || b == '\t') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * returns the index of the first b, newline or tab between from and to, or to if not found.
+     */
+    public static int indexOfTextOr(ByteBuffer buffer, int from, int to, int b) {
+        long pattern = (b & 0xff) * ONES;
+        int i;
+
+        for(i = from; i + 8 <= to; i += 8) {
+            long word = buffer.getLong(i);
+            long mask = zeros(word ^ pattern) | zeros(word ^ LF) | zeros(word ^ TAB);
+
+            if(mask != 0) {
+                return firstByte(i, mask);
+            }
+        }
+        for(; i < to; i++) {
+            byte c = buffer.get(i);
+
+            if(c == (byte)b || c == '\n' || c == '\t') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * returns the index of the first '<', '&amp;', newline or tab between from and to, or to if not found.
+     */
+    public static int indexOfTextOrReference(ByteBuffer buffer, int from, int to) {
+        int i;
+
+        for(i = from; i + 8 <= to; i += 8) {
+            long word = buffer.getLong(i);
+            long mask = zeros(word ^ LT) | zeros(word ^ LF) | zeros(word ^ TAB) | zeros(word ^ AMP);
+
+            if(mask != 0) {
+                return firstByte(i, mask);
+            }
+        }
+        for(; i < to; i++) {
+            byte b = buffer.get(i);
+
+            if(b == '<' || b == '\n' || b == '\t' || b == '&') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * returns the index of the first '&gt;' or quote between from and to, or to if not found.
+     */
+    public static int indexOfTagEnd(ByteBuffer buffer, int from, int to) {
+        int i;
+
+        for(i = from; i + 8 <= to; i += 8) {
+            long word = buffer.getLong(i);
+            long mask = zeros(word ^ GT) | zeros(word ^ QUOT) | zeros(word ^ APOS);
+
+            if(mask != 0) {
+                return firstByte(i, mask);
+            }
+        }
+        for(; i < to; i++) {
+            byte b = buffer.get(i);
+
+            if(b == '>' || b == '\"' || b == '\'') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * returns the index of the first b between from and to, or to if not found.
+     */
+    public static int indexOf(ByteBuffer buffer, int from, int to, int b) {
+        long pattern = (b & 0xff) * ONES;
+        int i;
+
+        for(i = from; i + 8 <= to; i += 8) {
+            long mask = zeros(buffer.getLong(i) ^ pattern);
+
+            if(mask != 0) {
+                return firstByte(i, mask);
+            }
+        }
+        for(; i < to; i++) {
+            if(buffer.get(i) == (byte)b) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * returns the index of the first byte between from and to which begins a sequence of UTF-8
+     * which is invalid or does not end before to, or to if all bytes are valid.
+     */
+    public static int indexOfInvalidUtf8(ByteBuffer buffer, int from, int to) {
+        int i = from;
+
+        while(i < to) {
+            int b, trail;
+
+            if(i + 8 <= to && (buffer.getLong(i) & ~LOWS) == 0) {
+                i += 8;
+                continue;
+            }
+            b = buffer.get(i) & 0xff;
+            if(b < 0x80) {
+                i++;
+                continue;
+            } else if(b >= 0xc2 && b <= 0xdf) {
+                trail = 1;
+            } else if(b >= 0xe0 && b <= 0xef) {
+                trail = 2;
+            } else if(b >= 0xf0 && b <= 0xf4) {
+                trail = 3;
+            } else {
+                return i;
+            }
+            if(i + trail >= to) {
+                return i;
+            }
+
+            int second = buffer.get(i + 1) & 0xff;
+
+            if((b == 0xe0 && second < 0xa0) || (b == 0xed && second > 0x9f)
+                    || (b == 0xf0 && second < 0x90) || (b == 0xf4 && second > 0x8f)) {
+                return i;
+            }
+            for(int k = 1; k <= trail; k++) {
+                if((buffer.get(i + k) & 0xc0) != 0x80) {
+                    return i;
+                }
+            }
+            i += trail + 1;
+        }
+        return to;
+    }
+
+    /**
+     * counts newlines between from and to.
+     */
+    public static int countLines(ByteBuffer buffer, int from, int to) {
+        int i, result = 0;
+
+        for(i = from; i + 8 <= to; i += 8) {
+            result += Long.bitCount(zeros(buffer.getLong(i) ^ LF));
+        }
+        for(; i < to; i++) {
+            if(buffer.get(i) == '\n') {
+                result++;
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,400 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Writer which encodes chars to UTF-8 into one reusable buffer and writes the buffer to a channel when it is full.
+ * FlatTagParser writes the bytes of the input to a sink of UTF-8 without decoding them.
+ * Other charsets are encoded by a CharsetEncoder.
+ * Lines are terminated by '\n'.
+ * A high surrogate at the end of a write is kept until the next write so that a pair can be split between writes.
+ */
+public class ByteSink extends Writer {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private final WritableByteChannel channel;
+    private final byte[] bytes;
+    private final ByteBuffer view;
+    private final CharsetEncoder encoder;
+    private final CharBuffer oneChar = CharBuffer.allocate(1);
+    private final CharBuffer pair = CharBuffer.allocate(2);
+    private int pendingHigh = -1;
+    private int length;
+    private long written;
+    private long writeNanos;
+    private FlatTagStats stats;
+    private boolean failed;
+
+    public ByteSink(WritableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ByteSink(WritableByteChannel channel, int bufferSize) {
+        this(channel, bufferSize, StandardCharsets.UTF_8);
+    }
+
+    public ByteSink(WritableByteChannel channel, int bufferSize, Charset charset) {
+        this.channel = channel;
+        this.bytes = new byte[Math.max(bufferSize, 16)];
+        this.view = ByteBuffer.wrap(bytes);
+        this.encoder = charset.equals(StandardCharsets.UTF_8) ? null : charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.length = 0;
+    }
+
+    /**
+     * returns true if the sink writes UTF-8, to which bytes of UTF-8 can be written as they are.
+     */
+    public boolean isUtf8() {
+        return encoder == null;
+    }
+
+    private void drain() throws IOException {
+        view.limit(length).position(0);
+        length = 0;
+        writeFully(view);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        FlatTagFlushEvent event;
+        long start, nanos;
+
+        if(!buffer.hasRemaining()) {
+            return;
+        }
+        event = new FlatTagFlushEvent();
+        start = System.nanoTime();
+        event.begin();
+        event.bytesWritten = buffer.remaining();
+        try {
+            while(buffer.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+        } catch(IOException e) {
+            failed = true;
+            throw e;
+        } finally {
+            nanos = System.nanoTime() - start;
+            writeNanos += nanos;
+            if(stats != null) {
+                stats.addOutputNanos(nanos);
+            }
+        }
+        event.commit();
+    }
+
+    /**
+     * adds the time of writing to the channel to the output time of stats.
+     */
+    public void setStats(FlatTagStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * returns the time of writing to the channel in nanoseconds.
+     */
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    /**
+     * returns the number of the bytes which have been written to the sink, including the bytes in the buffer.
+     */
+    public long getPosition() {
+        return written + length;
+    }
+
+    /**
+     * returns true if writing to the channel has failed.
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    private void ensure(int size) throws IOException {
+        if(length + size > bytes.length) {
+            drain();
+        }
+    }
+
+    private void encodeWith(CharBuffer chars) throws IOException {
+        // the pending high surrogate is encoded with the first char
+        while(pendingHigh >= 0 && chars.hasRemaining()) {
+            pair.clear();
+            pair.put((char)pendingHigh).put(chars.get()).flip();
+            pendingHigh = -1;
+            encodeChars(pair, false);
+        }
+        encodeChars(chars, false);
+    }
+
+    /*
+     * encodes chars and keeps a high surrogate which is left at the end if endOfInput is false.
+     */
+    private void encodeChars(CharBuffer chars, boolean endOfInput) throws IOException {
+        while(true) {
+            CoderResult result;
+
+            view.limit(bytes.length).position(length);
+            result = encoder.encode(chars, view, endOfInput);
+            length = view.position();
+            if(!result.isOverflow()) {
+                break;
+            }
+            drain();
+        }
+        if(chars.hasRemaining()) {
+            pendingHigh = chars.get();
+        }
+    }
+
+    /*
+     * encodes the high surrogate which is carried from the previous write with next,
+     * and returns the number of chars of next which are encoded.
+     */
+    private int encodePending(char next) throws IOException {
+        char high = (char)pendingHigh;
+
+        pendingHigh = -1;
+        if(Character.isLowSurrogate(next)) {
+            ensure(4);
+            encodeCodePoint(Character.toCodePoint(high, next));
+            return 1;
+        }
+        ensure(1);
+        encodeCodePoint('?');
+        return 0;
+    }
+
+    public void write(int c) throws IOException {
+        if(encoder != null) {
+            oneChar.clear();
+            oneChar.put((char)c).flip();
+            encodeWith(oneChar);
+        } else if(pendingHigh >= 0 && encodePending((char)c) > 0) {
+            return;
+        } else if(c < 0x80) {
+            ensure(1);
+            bytes[length++] = (byte)c;
+        } else {
+            encode((char)c, -1);
+        }
+    }
+
+    public void newLine() throws IOException {
+        write('\n');
+    }
+
+    /*
+     * encodes c, or c and next if they are a surrogate pair, and returns the number of chars encoded.
+     * next is -1 if c is the last char, and a high surrogate of the last char is kept until the next write.
+     */
+    private int encode(char c, int next) throws IOException {
+        int codePoint = c, consumed = 1;
+
+        if(Character.isHighSurrogate(c) && next < 0) {
+            pendingHigh = c;
+            return 1;
+        }
+        ensure(4);
+        if(Character.isHighSurrogate(c) && Character.isLowSurrogate((char)next)) {
+            codePoint = Character.toCodePoint(c, (char)next);
+            consumed = 2;
+        } else if(Character.isSurrogate(c)) {
+            codePoint = '?';
+        }
+        encodeCodePoint(codePoint);
+        return consumed;
+    }
+
+    private void encodeCodePoint(int codePoint) {
+        if(codePoint < 0x80) {
+            bytes[length++] = (byte)codePoint;
+        } else if(codePoint < 0x800) {
+            bytes[length++] = (byte)(0xc0 | (codePoint >> 6));
+            bytes[length++] = (byte)(0x80 | (codePoint & 0x3f));
+        } else if(codePoint < 0x10000) {
+            bytes[length++] = (byte)(0xe0 | (codePoint >> 12));
+            bytes[length++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+            bytes[length++] = (byte)(0x80 | (codePoint & 0x3f));
+        } else {
+            bytes[length++] = (byte)(0xf0 | (codePoint >> 18));
+            bytes[length++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+            bytes[length++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+            bytes[length++] = (byte)(0x80 | (codePoint & 0x3f));
+        }
+    }
+
+    public void write(CharSequence chars, int off, int len) throws IOException {
+        int end = off + len;
+
+        if(encoder != null) {
+            encodeWith(CharBuffer.wrap(chars, off, end));
+            return;
+        }
+        for(int i = pendingHigh >= 0 && len > 0 ? off + encodePending(chars.charAt(off)) : off; i < end;) {
+            char c = chars.charAt(i);
+
+            if(c < 0x80 && length < bytes.length) {
+                bytes[length++] = (byte)c;
+                i++;
+            } else {
+                i += encode(c, i + 1 < end ? chars.charAt(i + 1) : -1);
+            }
+        }
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        int end = off + len;
+
+        if(encoder != null) {
+            encodeWith(CharBuffer.wrap(cbuf, off, len));
+            return;
+        }
+        for(int i = pendingHigh >= 0 && len > 0 ? off + encodePending(cbuf[off]) : off; i < end;) {
+            char c = cbuf[i];
+
+            if(c < 0x80 && length < bytes.length) {
+                bytes[length++] = (byte)c;
+                i++;
+            } else {
+                i += encode(c, i + 1 < end ? cbuf[i + 1] : -1);
+            }
+        }
+    }
+
+    public void write(String str, int off, int len) throws IOException {
+        write((CharSequence)str, off, len);
+    }
+
+    public ByteSink append(CharSequence csq) throws IOException {
+        CharSequence chars = csq != null ? csq : "null";
+
+        write(chars, 0, chars.length());
+        return this;
+    }
+
+    public ByteSink append(CharSequence csq, int start, int end) throws IOException {
+        CharSequence chars = csq != null ? csq : "null";
+
+        write(chars, start, end - start);
+        return this;
+    }
+
+    /*
+     * writes the high surrogate which is not followed by a low surrogate.
+     */
+    private void endPending() throws IOException {
+        if(pendingHigh < 0) {
+            return;
+        } else if(encoder != null) {
+            pair.clear();
+            pair.put((char)pendingHigh).flip();
+            pendingHigh = -1;
+            encodeChars(pair, true);
+        } else {
+            pendingHigh = -1;
+            ensure(1);
+            encodeCodePoint('?');
+        }
+    }
+
+    /**
+     * writes the bytes as they are.
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        endPending();
+        if(len > bytes.length - length) {
+            drain();
+            if(len > bytes.length) {
+                writeFully(ByteBuffer.wrap(b, off, len));
+                return;
+            }
+        }
+        System.arraycopy(b, off, bytes, length, len);
+        length += len;
+    }
+
+    /**
+     * writes the bytes of buffer from index off as they are, which does not change the position of buffer.
+     */
+    public void write(ByteBuffer buffer, int off, int len) throws IOException {
+        endPending();
+        if(len > bytes.length - length) {
+            drain();
+            if(len > bytes.length) {
+                writeFully(buffer.duplicate().limit(off + len).position(off));
+                return;
+            }
+        }
+        buffer.get(off, bytes, length, len);
+        length += len;
+    }
+
+    public void flush() throws IOException {
+        drain();
+    }
+
+    /*
+     * writes the rest of the encoder, after which chars can not be written.
+     */
+    private void finishEncoding() throws IOException {
+        if(encoder == null) {
+            endPending();
+            return;
+        }
+        pair.clear();
+        if(pendingHigh >= 0) {
+            pair.put((char)pendingHigh);
+            pendingHigh = -1;
+        }
+        pair.flip();
+        encodeChars(pair, true);
+        while(true) {
+            CoderResult result;
+
+            view.limit(bytes.length).position(length);
+            result = encoder.flush(view);
+            length = view.position();
+            if(!result.isOverflow()) {
+                break;
+            }
+            drain();
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            if(!failed) {
+                finishEncoding();
+                flush();
+            }
+        } finally {
+            try {
+                channel.close();
+            } catch(IOException e) {
+                // a channel like DeflatingChannel writes the rest when it is closed
+                failed = true;
+                throw e;
+            }
+        }
+    }
+
+}
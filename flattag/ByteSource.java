@@ -0,0 +1,722 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A source of UTF-8 encoded input which is handed to the parser chunk by chunk.
+ */
+public abstract class ByteSource implements Closeable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+    public static final long MAX_MAP_SIZE = 1L << 30;
+
+    private static final int DECLARATION_SIZE = 1024;
+    private static final Pattern ENCODING = Pattern.compile(
+            "^<\\?xml[^>]*?\\sencoding\\s*=\\s*[\"']([A-Za-z][A-Za-z0-9._:-]*)[\"']");
+
+    /**
+     * returns the next chunk of input or null at end of input.
+     * The returned buffer is valid until next() is called again.
+     */
+    public abstract ByteBuffer next() throws IOException;
+
+    /**
+     * returns true if the bytes of the source are the bytes of a file as they are,
+     * which are neither inflated nor decoded, so that an offset in the source is an offset in the file.
+     */
+    public boolean isMapped() {
+        return false;
+    }
+
+    public static ByteSource map(Path path) throws IOException {
+        return map(path, 0);
+    }
+
+    /**
+     * returns a source of the bytes of the file from position.
+     */
+    public static ByteSource map(Path path, long position) throws IOException {
+        return new MappedSource(FileChannel.open(path, StandardOpenOption.READ), position);
+    }
+
+    /**
+     * returns a source of the bytes of the growing file from position, which waits for the bytes appended
+     * to the file at its end like tail -f and never ends.
+     * idle is flushed before each wait.
+     */
+    public static ByteSource follow(Path path, long position, Flushable idle) throws IOException {
+        return new FollowSource(FileChannel.open(path, StandardOpenOption.READ), position, idle);
+    }
+
+    public static ByteSource of(ReadableByteChannel channel) {
+        return of(channel, DEFAULT_CHUNK_SIZE);
+    }
+
+    public static ByteSource of(ReadableByteChannel channel, int chunkSize) {
+        return new ChannelSource(channel, chunkSize);
+    }
+
+    public static ByteSource of(Reader reader) {
+        return new ReaderSource(reader);
+    }
+
+    public static ByteSource of(byte[] bytes) {
+        return new BufferSource(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * returns a source which inflates source on another thread if it is gzip or zip, or source as it is.
+     * The entries of zip are concatenated in the order of the archive.
+     */
+    public static ByteSource inflate(ByteSource source) throws IOException {
+        ByteBuffer first = source.next();
+
+        if(first == null) {
+            return source;
+        } else if(startsWith(first, 0x1f, 0x8b)) {
+            return new ReadAheadSource(new PeekedSource(source, first), ReadAheadSource.GZIP);
+        } else if(startsWith(first, 'P', 'K', 3, 4)) {
+            return new ReadAheadSource(new PeekedSource(source, first), ReadAheadSource.ZIP);
+        } else {
+            return new PeekedSource(source, first);
+        }
+    }
+
+    /**
+     * returns a source which reads source on another thread ahead of the parser.
+     * A source which is already read on another thread is returned as it is.
+     */
+    public static ByteSource readAhead(ByteSource source) {
+        return source instanceof ReadAheadSource ? source : new ReadAheadSource(source, ReadAheadSource.PLAIN);
+    }
+
+    /**
+     * returns a source of UTF-8 which is decoded from source by charset.
+     * If charset is null, it is detected by the encoding of the XML declaration in the first chunk
+     * and UTF-8 is assumed if it is not declared.
+     * A byte order mark takes precedence over charset and is removed.
+     * UTF-8 and US-ASCII input is passed as it is.
+     */
+    public static ByteSource decode(ByteSource source, Charset charset) throws IOException {
+        ByteBuffer first = source.next();
+        Charset detected = charset;
+        int position;
+        byte[][] table;
+
+        if(first == null) {
+            return source;
+        }
+        position = first.position();
+        if(startsWith(first, 0xef, 0xbb, 0xbf)) {
+            first.position(position + 3);
+            detected = StandardCharsets.UTF_8;
+        } else if(startsWith(first, 0xfe, 0xff)) {
+            first.position(position + 2);
+            detected = StandardCharsets.UTF_16BE;
+        } else if(startsWith(first, 0xff, 0xfe)) {
+            first.position(position + 2);
+            detected = StandardCharsets.UTF_16LE;
+        } else if(detected == null) {
+            detected = detectDeclaration(first);
+        }
+
+        ByteSource peeked = new PeekedSource(source, first);
+
+        if(detected.equals(StandardCharsets.UTF_8) || detected.equals(StandardCharsets.US_ASCII)) {
+            return peeked;
+        } else if((table = singleByteTable(detected)) != null) {
+            return new TableSource(peeked, table);
+        } else {
+            return new DecodingSource(peeked, detected);
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int... prefix) {
+        if(buffer.remaining() < prefix.length) {
+            return false;
+        }
+        for(int i = 0; i < prefix.length; i++) {
+            if((buffer.get(buffer.position() + i) & 0xff) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Charset detectDeclaration(ByteBuffer first) {
+        byte[] head = new byte[Math.min(first.remaining(), DECLARATION_SIZE)];
+        Matcher matcher;
+
+        if(startsWith(first, '<', 0, '?', 0)) {
+            return StandardCharsets.UTF_16LE;
+        } else if(startsWith(first, 0, '<', 0, '?')) {
+            return StandardCharsets.UTF_16BE;
+        }
+        first.get(first.position(), head);
+        matcher = ENCODING.matcher(new String(head, StandardCharsets.ISO_8859_1));
+        if(matcher.find()) {
+            try {
+                Charset declared = Charset.forName(matcher.group(1));
+
+                // the declaration which has been read as ASCII cannot be UTF-16 and so on
+                if(Arrays.equals("<?xml".getBytes(declared), "<?xml".getBytes(StandardCharsets.US_ASCII))) {
+                    return declared;
+                }
+            } catch(IllegalArgumentException e) {
+                // an unknown encoding is read as UTF-8
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /*
+     * returns UTF-8 of each byte if charset encodes one char by one byte, or null.
+     */
+    private static byte[][] singleByteTable(Charset charset) {
+        byte[][] result = new byte[256][];
+
+        if(!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1.0f) {
+            return null;
+        }
+        for(int i = 0; i < 256; i++) {
+            String decoded = new String(new byte[] { (byte)i }, charset);
+
+            if(decoded.length() != 1) {
+                return null;
+            }
+            result[i] = decoded.getBytes(StandardCharsets.UTF_8);
+        }
+        return result;
+    }
+
+    /*
+     * returns the chunk which has been read for detecting the charset before the rest of the source.
+     */
+    static class PeekedSource extends ByteSource {
+
+        private final ByteSource source;
+        private ByteBuffer first;
+
+        PeekedSource(ByteSource source, ByteBuffer first) {
+            this.source = source;
+            this.first = first;
+        }
+
+        public ByteBuffer next() throws IOException {
+            ByteBuffer result = first;
+
+            if(result == null) {
+                return source.next();
+            }
+            first = null;
+            return result;
+        }
+
+        public boolean isMapped() {
+            return source.isMapped();
+        }
+
+        public void close() throws IOException {
+            source.close();
+        }
+
+    }
+
+    /*
+     * reads a source as a stream for java.util.zip.
+     */
+    private static class SourceStream extends InputStream {
+
+        private final ByteSource source;
+        private ByteBuffer chunk;
+
+        SourceStream(ByteSource source) {
+            this.source = source;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int length;
+
+            while(chunk == null || !chunk.hasRemaining()) {
+                if((chunk = source.next()) == null) {
+                    return -1;
+                }
+            }
+            length = Math.min(len, chunk.remaining());
+            chunk.get(b, off, length);
+            return length;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+    }
+
+    /*
+     * reads the source on a thread which fills the buffers while the parser reads the previous ones.
+     * gzip and zip are inflated on the thread.
+     * A buffer returned by next() is recycled when next() is called again.
+     */
+    static class ReadAheadSource extends ByteSource {
+
+        static final int PLAIN = 0;
+        static final int GZIP = 1;
+        static final int ZIP = 2;
+
+        private static final int BUFFER_COUNT = 4;
+        private static final int BUFFER_SIZE = 1 << 18;
+        private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+        private final ByteSource source;
+        private final SpscRing<ByteBuffer> filled = new SpscRing<ByteBuffer>(BUFFER_COUNT + 1);
+        private final SpscRing<ByteBuffer> free = new SpscRing<ByteBuffer>(BUFFER_COUNT);
+        private final Thread thread;
+        private volatile IOException failure;
+        private ByteBuffer current;
+        private ByteBuffer spare;
+        private boolean eof;
+
+        ReadAheadSource(ByteSource source, int format) {
+            this.source = source;
+            for(int i = 0; i < BUFFER_COUNT; i++) {
+                free.offer(ByteBuffer.allocate(BUFFER_SIZE));
+            }
+            thread = new Thread(() -> run(format), "flattag-reader");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void run(int format) {
+            try {
+                if(format == ZIP) {
+                    ZipInputStream input = new ZipInputStream(new SourceStream(source));
+                    ZipEntry entry;
+
+                    while((entry = input.getNextEntry()) != null) {
+                        if(!entry.isDirectory()) {
+                            copy(input, true);
+                        }
+                    }
+                } else if(format == GZIP) {
+                    copy(new GZIPInputStream(new SourceStream(source), BUFFER_SIZE), true);
+                } else {
+                    copy(new SourceStream(source), false);
+                }
+            } catch(IOException e) {
+                failure = e;
+            } catch(InterruptedException e) {
+                // closed by the reader
+            }
+            // there is always room for END because all buffers and END fit the ring
+            filled.offer(END);
+        }
+
+        /*
+         * an inflated stream fills each buffer, but a plain source hands what has been read
+         * so that a pipe is not waited for.
+         */
+        private void copy(InputStream input, boolean fully) throws IOException, InterruptedException {
+            while(true) {
+                ByteBuffer buffer = spare != null ? spare : free.take();
+                int length = fully
+                        ? input.readNBytes(buffer.array(), 0, buffer.capacity())
+                        : input.read(buffer.array(), 0, buffer.capacity());
+
+                spare = null;
+                if(length <= 0) {
+                    // the thread takes from free and must not put to it
+                    spare = buffer;
+                    return;
+                }
+                buffer.clear();
+                buffer.limit(length);
+                filled.put(buffer);
+            }
+        }
+
+        public ByteBuffer next() throws IOException {
+            ByteBuffer result;
+
+            if(current != null) {
+                free.offer(current);
+                current = null;
+            }
+            if(eof) {
+                return null;
+            }
+            try {
+                result = filled.take();
+            } catch(InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if(result == END) {
+                eof = true;
+                if(failure != null) {
+                    throw failure;
+                }
+                return null;
+            }
+            current = result;
+            return result;
+        }
+
+        public void close() throws IOException {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch(InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                source.close();
+            }
+        }
+
+    }
+
+    /*
+     * converts a single byte charset by the table.
+     * ASCII bytes are copied as they are if the charset is compatible with ASCII.
+     */
+    static class TableSource extends ByteSource {
+
+        private static final int CHUNK_SIZE = 65536;
+
+        private final ByteSource source;
+        private final byte[][] table;
+        private final boolean ascii;
+        private final ByteBuffer bytes;
+        private ByteBuffer chunk;
+
+        TableSource(ByteSource source, byte[][] table) {
+            boolean asciiCompatible = true;
+
+            for(int i = 0; i < 0x80; i++) {
+                asciiCompatible &= table[i].length == 1 && table[i][0] == i;
+            }
+            this.source = source;
+            this.table = table;
+            this.ascii = asciiCompatible;
+            this.bytes = ByteBuffer.allocate(CHUNK_SIZE * 3);
+        }
+
+        public ByteBuffer next() throws IOException {
+            byte[] out = bytes.array();
+            int position, end, length = 0;
+
+            while(chunk == null || !chunk.hasRemaining()) {
+                if((chunk = source.next()) == null) {
+                    return null;
+                }
+            }
+            position = chunk.position();
+            end = Math.min(chunk.limit(), position + CHUNK_SIZE);
+            for(int i = position; i < end; i++) {
+                byte b = chunk.get(i);
+
+                if(b >= 0 && ascii) {
+                    out[length++] = b;
+                } else {
+                    byte[] utf8 = table[b & 0xff];
+
+                    System.arraycopy(utf8, 0, out, length, utf8.length);
+                    length += utf8.length;
+                }
+            }
+            chunk.position(end);
+            bytes.clear();
+            bytes.limit(length);
+            return bytes;
+        }
+
+        public void close() throws IOException {
+            source.close();
+        }
+
+    }
+
+    /*
+     * converts a multibyte charset by a decoder and an encoder of UTF-8.
+     */
+    static class DecodingSource extends ByteSource {
+
+        private static final int CHARS_SIZE = 65536;
+
+        private final ByteSource source;
+        private final CharsetDecoder decoder;
+        private final CharsetEncoder encoder;
+        private final ByteBuffer input;
+        private final CharBuffer chars;
+        private final ByteBuffer bytes;
+        private ByteBuffer chunk;
+        private boolean eof;
+        private boolean flushed;
+
+        DecodingSource(ByteSource source, Charset charset) {
+            this.source = source;
+            this.decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.encoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.input = ByteBuffer.allocate(CHARS_SIZE);
+            this.chars = CharBuffer.allocate(CHARS_SIZE);
+            this.bytes = ByteBuffer.allocate(CHARS_SIZE * 3 + 4);
+            this.input.flip();
+        }
+
+        /*
+         * copies the chunks of the source to the input which keeps an incomplete char at the end of a chunk.
+         */
+        private void fill() throws IOException {
+            input.compact();
+            while(input.hasRemaining() && !eof) {
+                if(chunk == null || !chunk.hasRemaining()) {
+                    if((chunk = source.next()) == null) {
+                        eof = true;
+                        break;
+                    }
+                }
+
+                int limit = chunk.limit();
+
+                chunk.limit(chunk.position() + Math.min(input.remaining(), chunk.remaining()));
+                input.put(chunk);
+                chunk.limit(limit);
+            }
+            input.flip();
+        }
+
+        public ByteBuffer next() throws IOException {
+            bytes.clear();
+            while(!flushed && bytes.position() == 0) {
+                boolean end;
+
+                fill();
+                decoder.decode(input, chars, eof);
+                end = eof && !input.hasRemaining();
+                if(end) {
+                    decoder.flush(chars);
+                }
+                chars.flip();
+                encoder.encode(chars, bytes, end);
+                if(end) {
+                    encoder.flush(bytes);
+                    flushed = true;
+                }
+                chars.compact();
+            }
+            bytes.flip();
+            return bytes.hasRemaining() ? bytes : null;
+        }
+
+        public void close() throws IOException {
+            source.close();
+        }
+
+    }
+
+    static class BufferSource extends ByteSource {
+
+        private ByteBuffer buffer;
+
+        BufferSource(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public ByteBuffer next() {
+            ByteBuffer result = buffer;
+
+            buffer = null;
+            return result;
+        }
+
+        public void close() {
+        }
+
+    }
+
+    static class MappedSource extends ByteSource {
+
+        private final FileChannel channel;
+        private long position;
+
+        MappedSource(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        public boolean isMapped() {
+            return true;
+        }
+
+        public ByteBuffer next() throws IOException {
+            long size = channel.size();
+
+            if(position >= size) {
+                return null;
+            }
+
+            long length = Math.min(size - position, MAX_MAP_SIZE);
+            ByteBuffer result = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+            position += length;
+            return result;
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+
+    }
+
+    static class FollowSource extends ByteSource {
+
+        private static final long POLL_MILLIS = 200;
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final Flushable idle;
+        private long position;
+
+        FollowSource(FileChannel channel, long position, Flushable idle) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(DEFAULT_CHUNK_SIZE);
+            this.idle = idle;
+            this.position = position;
+        }
+
+        public ByteBuffer next() throws IOException {
+            buffer.clear();
+            while(channel.read(buffer, position) <= 0) {
+                if(channel.size() < position) {
+                    throw new IOException("the input has been truncated");
+                }
+                idle.flush();
+                try {
+                    Thread.sleep(POLL_MILLIS);
+                } catch(InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            buffer.flip();
+            position += buffer.remaining();
+            return buffer;
+        }
+
+        public boolean isMapped() {
+            return true;
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+
+    }
+
+    static class ChannelSource extends ByteSource {
+
+        private final ReadableByteChannel channel;
+        private final ByteBuffer buffer;
+        private boolean eof;
+
+        ChannelSource(ReadableByteChannel channel, int chunkSize) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(chunkSize);
+            this.eof = false;
+        }
+
+        public ByteBuffer next() throws IOException {
+            buffer.clear();
+            while(!eof && buffer.hasRemaining()) {
+                if(channel.read(buffer) < 0) {
+                    eof = true;
+                } else if(buffer.position() > 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer.hasRemaining() ? buffer : null;
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+
+    }
+
+    static class ReaderSource extends ByteSource {
+
+        private static final int CHARS_SIZE = 8192;
+
+        private final Reader reader;
+        private final CharsetEncoder encoder;
+        private final CharBuffer chars;
+        private final ByteBuffer bytes;
+        private boolean eof;
+
+        ReaderSource(Reader reader) {
+            this.reader = reader;
+            this.encoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.chars = CharBuffer.allocate(CHARS_SIZE);
+            this.bytes = ByteBuffer.allocate(CHARS_SIZE * 3 + 4);
+            this.eof = false;
+        }
+
+        public ByteBuffer next() throws IOException {
+            bytes.clear();
+            while(!eof && bytes.position() == 0) {
+                if(reader.read(chars) < 0) {
+                    eof = true;
+                }
+                chars.flip();
+                encoder.encode(chars, bytes, eof);
+                if(eof) {
+                    encoder.flush(bytes);
+                }
+                chars.compact();
+            }
+            bytes.flip();
+            return bytes.hasRemaining() ? bytes : null;
+        }
+
+        public void close() throws IOException {
+            reader.close();
+        }
+
+    }
+
+}
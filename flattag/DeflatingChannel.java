@@ -0,0 +1,29 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A channel which compresses the bytes by gzip on the thread of WriteBehindChannel.
+ * The trailer of gzip is written when the channel is closed.
+ */
+public class DeflatingChannel extends WriteBehindChannel {
+
+    public DeflatingChannel(WritableByteChannel channel) {
+        super(channel);
+    }
+
+    protected OutputStream openStream(WritableByteChannel channel) throws IOException {
+        return new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+    }
+
+}
@@ -0,0 +1,343 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the binary format of FlatBinaryWriter by mapping the file.
+ * A cursor visits the records of the whole file or of a split, and can skip the records of other paths
+ * without decoding their values.
+ */
+public final class FlatBinaryReader implements Closeable {
+
+    private static final long WINDOW_SIZE = 1L << 30;
+    private static final int HEADER_SIZE = FlatBinaryWriter.MAGIC.length + 1 + FlatBinaryWriter.MARKER_SIZE;
+    private static final int TRAILER_SIZE = 8 + FlatBinaryWriter.TRAILER_MAGIC.length;
+    // a kind, two varints and a varint of a length at most
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    private final FileChannel channel;
+    private final byte[] marker;
+    private final long footer;
+    private final List<String> names = new ArrayList<String>();
+    private int[] parents;
+    private int[] pathNames;
+
+    private FlatBinaryReader(FileChannel channel) throws IOException {
+        ByteBuffer header = read(channel, 0, HEADER_SIZE);
+        ByteBuffer trailer = read(channel, channel.size() - TRAILER_SIZE, TRAILER_SIZE);
+        byte[] magic = new byte[FlatBinaryWriter.MAGIC.length];
+        byte[] trailerMagic = new byte[FlatBinaryWriter.TRAILER_MAGIC.length];
+
+        this.channel = channel;
+        header.get(magic);
+        trailer.position(8);
+        trailer.get(trailerMagic);
+        if(!Arrays.equals(magic, FlatBinaryWriter.MAGIC) || header.get() != FlatBinaryWriter.VERSION
+                || !Arrays.equals(trailerMagic, FlatBinaryWriter.TRAILER_MAGIC)) {
+            throw new IOException("not a binary file of flattag");
+        }
+        marker = new byte[FlatBinaryWriter.MARKER_SIZE];
+        header.get(marker);
+        footer = trailer.getLong(0);
+        readFooter(read(channel, footer, (int)(channel.size() - TRAILER_SIZE - footer)));
+    }
+
+    public static FlatBinaryReader open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            return new FlatBinaryReader(channel);
+        } catch(IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer result = ByteBuffer.allocate(length);
+
+        if(position < 0 || length < 0) {
+            throw new IOException("not a binary file of flattag");
+        }
+        while(result.hasRemaining()) {
+            if(channel.read(result, position + result.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        result.flip();
+        return result;
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long result = 0;
+        int shift = 0, b;
+
+        do {
+            b = buffer.get();
+            result |= (long)(b & 0x7f) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return result;
+    }
+
+    private void readFooter(ByteBuffer buffer) throws IOException {
+        int count;
+
+        if(buffer.get() != FlatBinaryWriter.END) {
+            throw new IOException("invalid footer");
+        }
+        count = (int)readVarint(buffer);
+        for(int i = 0; i < count; i++) {
+            byte[] name = new byte[(int)readVarint(buffer)];
+
+            buffer.get(name);
+            names.add(new String(name, StandardCharsets.UTF_8));
+        }
+        count = (int)readVarint(buffer) + 1;
+        parents = new int[count];
+        pathNames = new int[count];
+        parents[0] = -1;
+        pathNames[0] = -1;
+        for(int i = 1; i < count; i++) {
+            parents[i] = (int)readVarint(buffer);
+            pathNames[i] = (int)readVarint(buffer);
+        }
+    }
+
+    public List<String> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    public int getPathCount() {
+        return parents.length;
+    }
+
+    /**
+     * returns the id of the parent path or -1 for the root.
+     */
+    public int getParent(int path) {
+        return parents[path];
+    }
+
+    /**
+     * returns the tag name of the last element of the path or null for the root.
+     */
+    public String getName(int path) {
+        return path > 0 ? names.get(pathNames[path]) : null;
+    }
+
+    /**
+     * returns the tag names of the path from the root.
+     */
+    public List<String> getPath(int path) {
+        List<String> result = new ArrayList<String>();
+
+        for(int i = path; i > 0; i = parents[i]) {
+            result.add(getName(i));
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * returns the paths which match the filter, which can be given to Cursor.next(BitSet).
+     */
+    public BitSet findPaths(PathFilter filter) {
+        PathFilter.Matcher matcher = filter.matcher();
+        int[] states = new int[parents.length];
+        BitSet result = new BitSet();
+
+        // a parent has always a smaller id than its children
+        states[0] = matcher.start();
+        result.set(0, matcher.isSelected(states[0]));
+        for(int i = 1; i < parents.length; i++) {
+            states[i] = matcher.next(states[parents[i]], pathNames[i], names.get(pathNames[i]));
+            result.set(i, matcher.isSelected(states[i]));
+        }
+        return result;
+    }
+
+    /**
+     * returns the number of bytes of the records, which is the end of the last split.
+     */
+    public long getDataSize() {
+        return footer;
+    }
+
+    /**
+     * returns a cursor over all records.
+     */
+    public Cursor cursor() throws IOException {
+        return cursor(0, footer);
+    }
+
+    /**
+     * returns a cursor over the blocks whose sync marker begins in [start, end).
+     * The splits of a file which cover [0, getDataSize()) read each record once.
+     */
+    public Cursor cursor(long start, long end) throws IOException {
+        return new Cursor(Math.max(start, HEADER_SIZE), end);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public final class Cursor {
+
+        private final long end;
+        private ByteBuffer window;
+        private long base;
+        private int kind;
+        private int path;
+        private int name;
+        private int valueOffset;
+        private int valueLength;
+        private boolean finished;
+
+        private Cursor(long start, long end) throws IOException {
+            this.end = Math.min(end, footer);
+            if(start >= this.end) {
+                window = ByteBuffer.allocate(0);
+                base = footer;
+                finished = true;
+            } else {
+                map(start);
+                finished = !seekSync();
+            }
+        }
+
+        private void map(long position) throws IOException {
+            base = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, footer - position));
+        }
+
+        private long position() {
+            return base + window.position();
+        }
+
+        private void ensure(int length) throws IOException {
+            if(window.remaining() < length && base + window.limit() < footer) {
+                map(position());
+            }
+        }
+
+        private boolean isSync(int index) {
+            if(window.get(index) != FlatBinaryWriter.SYNC || index + 1 + marker.length > window.limit()) {
+                return false;
+            }
+            for(int i = 0; i < marker.length; i++) {
+                if(window.get(index + 1 + i) != marker[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /*
+         * moves to the records after the first sync marker from the position.
+         */
+        private boolean seekSync() throws IOException {
+            while(position() < this.end) {
+                ensure(1 + marker.length);
+                if(isSync(window.position())) {
+                    window.position(window.position() + 1 + marker.length);
+                    return true;
+                } else if(window.remaining() <= marker.length) {
+                    return false;
+                }
+                window.position(window.position() + 1);
+            }
+            return false;
+        }
+
+        /**
+         * moves to the next record and returns false at the end.
+         */
+        public boolean next() throws IOException {
+            while(!finished) {
+                if(position() >= footer) {
+                    finished = true;
+                    break;
+                }
+                ensure(RECORD_HEADER_SIZE);
+                kind = window.get();
+                if(kind == FlatBinaryWriter.SYNC) {
+                    // the next block belongs to the next split
+                    finished = position() - 1 >= end;
+                    window.position(window.position() + marker.length);
+                    continue;
+                }
+                path = (int)readVarint(window);
+                name = kind == FlatBinaryWriter.ATTRIBUTE ? (int)readVarint(window) : -1;
+
+                valueLength = (int)readVarint(window);
+                ensure(valueLength);
+                valueOffset = window.position();
+                window.position(valueOffset + valueLength);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * moves to the next record whose path is in paths.
+         */
+        public boolean next(BitSet paths) throws IOException {
+            while(next()) {
+                if(paths.get(path)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * returns FlatBinaryWriter.TEXT or FlatBinaryWriter.ATTRIBUTE.
+         */
+        public int getKind() {
+            return kind;
+        }
+
+        public int getPath() {
+            return path;
+        }
+
+        /**
+         * returns the name of the attribute or null.
+         */
+        public String getAttributeName() {
+            return name >= 0 ? names.get(name) : null;
+        }
+
+        /**
+         * returns the UTF-8 bytes of the value, which are valid until next is called.
+         */
+        public ByteBuffer getValueBytes() {
+            return window.slice(valueOffset, valueLength);
+        }
+
+        public String getValue() {
+            return StandardCharsets.UTF_8.decode(getValueBytes()).toString();
+        }
+
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A handler which writes the records of a document in the binary format which FlatBinaryReader reads.
+ * <pre>
+ * file    := "FTAGBIN" version(1) marker(16) block* footer trailer
+ * block   := SYNC marker(16) record*
+ * record  := TEXT path value | ATTRIBUTE path name value
+ * value   := length bytes
+ * footer  := END count name* count (parent name)*
+ * trailer := footer-offset(8, big endian) "FTAG"
+ * </pre>
+ * Numbers are unsigned varints of 7 bits per byte, the lower bits first.
+ * A path is the id of the list of the tag names from the root, which is defined in the footer by
+ * the id of its parent and the id of its name. The path 0 is the root, which has no element.
+ * Strings are UTF-8. A block begins at least every 64 KiB so that a file can be split at the markers.
+ * Attributes are always records like -L.
+ */
+public class FlatBinaryWriter implements FlatTagHandler {
+
+    public static final int SYNC = 0;
+    public static final int TEXT = 1;
+    public static final int ATTRIBUTE = 2;
+    public static final int END = 3;
+
+    static final byte[] MAGIC = "FTAGBIN".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] TRAILER_MAGIC = "FTAG".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int MARKER_SIZE = 16;
+    static final int SYNC_INTERVAL = 1 << 16;
+
+    private final ByteSink sink;
+    private final boolean ignoreAttr;
+    private final byte[] marker = new byte[MARKER_SIZE];
+    private final ByteBuilder record = new ByteBuilder();
+    private final Map<String, Integer> names = new HashMap<String, Integer>();
+    private final List<String> nameList = new ArrayList<String>();
+    private final Map<Long, Integer> paths = new HashMap<Long, Integer>();
+    private int[] pathParents = new int[64];
+    private int[] pathNames = new int[64];
+    private int pathCount;
+    private int[] stack = new int[16];
+    private int depth;
+    private long position;
+    private long blockStart;
+
+    public FlatBinaryWriter(FlatTagOptions options, ByteSink sink) throws IOException {
+        this.sink = sink;
+        this.ignoreAttr = options.isIgnoreAttr();
+        this.pathCount = 1;
+        this.depth = 0;
+        new Random().nextBytes(marker);
+        record.append(MAGIC);
+        record.append(VERSION);
+        record.append(marker);
+        write();
+        writeSync();
+    }
+
+    private void write() throws IOException {
+        record.writeRawTo(sink);
+        position += record.length();
+        record.clear();
+    }
+
+    private void writeSync() throws IOException {
+        blockStart = position;
+        record.append(SYNC);
+        record.append(marker);
+        write();
+    }
+
+    private void appendVarint(long value) {
+        while(value >= 0x80) {
+            record.append((int)(value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        record.append((int)value);
+    }
+
+    private void appendString(CharSequence value) {
+        if(value instanceof Utf8View) {
+            Utf8View view = (Utf8View)value;
+
+            appendVarint(view.utf8Length());
+            view.appendTo(record);
+        } else {
+            byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+
+            appendVarint(bytes.length);
+            record.append(bytes);
+        }
+    }
+
+    private int name(String name) {
+        Integer id = names.get(name);
+
+        if(id == null) {
+            id = nameList.size();
+            names.put(name, id);
+            nameList.add(name);
+        }
+        return id;
+    }
+
+    private int path(int parent, int name) {
+        Long key = ((long)parent << 32) | name;
+        Integer id = paths.get(key);
+
+        if(id == null) {
+            if(pathCount >= pathParents.length) {
+                int[] newParents = new int[pathParents.length * 2];
+                int[] newNames = new int[pathNames.length * 2];
+
+                System.arraycopy(pathParents, 0, newParents, 0, pathCount);
+                System.arraycopy(pathNames, 0, newNames, 0, pathCount);
+                pathParents = newParents;
+                pathNames = newNames;
+            }
+            id = pathCount++;
+            pathParents[id] = parent;
+            pathNames[id] = name;
+            paths.put(key, id);
+        }
+        return id;
+    }
+
+    private int currentPath() {
+        return depth > 0 ? stack[depth - 1] : 0;
+    }
+
+    private void beginRecord(int kind) throws IOException {
+        if(position - blockStart >= SYNC_INTERVAL) {
+            writeSync();
+        }
+        record.append(kind);
+        appendVarint(currentPath());
+    }
+
+    public void onOpen(CharSequence name, Attributes attributes) {
+        int id = path(currentPath(), name(name.toString()));
+
+        if(depth >= stack.length) {
+            int[] newStack = new int[stack.length * 2];
+
+            System.arraycopy(stack, 0, newStack, 0, depth);
+            stack = newStack;
+        }
+        stack[depth++] = id;
+    }
+
+    public void onClose(CharSequence name) {
+        depth--;
+    }
+
+    public void onText(CharSequence text) throws IOException {
+        beginRecord(TEXT);
+        appendString(text);
+        write();
+    }
+
+    public void onAttribute(CharSequence key, CharSequence value) throws IOException {
+        if(ignoreAttr) {
+            return;
+        }
+        beginRecord(ATTRIBUTE);
+        appendVarint(name(key.toString()));
+        appendString(value);
+        write();
+    }
+
+    /**
+     * writes the dictionary of the names and the paths and flushes the sink.
+     */
+    public void onEnd() throws IOException {
+        long footer = position;
+
+        record.append(END);
+        appendVarint(nameList.size());
+        for(String name : nameList) {
+            appendString(name);
+        }
+        appendVarint(pathCount - 1);
+        for(int i = 1; i < pathCount; i++) {
+            appendVarint(pathParents[i]);
+            appendVarint(pathNames[i]);
+        }
+        for(int i = 56; i >= 0; i -= 8) {
+            record.append((int)(footer >>> i));
+        }
+        record.append(TRAILER_MAGIC);
+        write();
+        sink.flush();
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.util.List;
+
+/**
+ * One line of the flattened output.
+ * The path lists of consecutive records of the same element are shared and must not be modified.
+ */
+public final class FlatRecord {
+
+    public enum Kind {
+        /** the text of an element */
+        TEXT,
+        /** an attribute line of -L */
+        ATTRIBUTE,
+        /** a delimited row of -R */
+        ROW
+    }
+
+    private final List<String> tags;
+    private final List<String> path;
+    private final Kind kind;
+    private final String key;
+    private final String value;
+    private final int lineNo;
+
+    public FlatRecord(List<String> tags, List<String> path, Kind kind, String key, String value, int lineNo) {
+        this.tags = tags;
+        this.path = path;
+        this.kind = kind;
+        this.key = key;
+        this.value = value;
+        this.lineNo = lineNo;
+    }
+
+    /**
+     * returns the tag names of the elements from the root.
+     */
+    public List<String> getTags() {
+        return tags;
+    }
+
+    /**
+     * returns the columns of the elements from the root as they are output, with the attributes.
+     */
+    public List<String> getPath() {
+        return path;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * returns the name of the attribute or null.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public int getLineNo() {
+        return lineNo;
+    }
+
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+
+        for(String label : path) {
+            result.append(label).append('\t');
+        }
+        if(key != null) {
+            result.append('@').append(key).append('\t');
+        }
+        return result.append(value).toString();
+    }
+
+}
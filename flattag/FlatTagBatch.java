@@ -0,0 +1,234 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Flats many files in parallel.
+ * Each output line is prefixed by the name of its file.
+ * In ordered mode the output of each file is written in the order of the files
+ * and at most QUEUE_SIZE chunks per running file are buffered.
+ */
+public class FlatTagBatch {
+
+    private static final int CHUNK_SIZE = 65536;
+    private static final int QUEUE_SIZE = 16;
+    private static final String END = new String();
+
+    private final FlatTagOptions options;
+    private final Writer output;
+    private final int threads;
+    private final boolean ordered;
+    private int returnCode;
+
+    public FlatTagBatch(FlatTagOptions options, Writer output, int threads, boolean ordered) {
+        this.options = options;
+        this.output = output;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.ordered = ordered;
+    }
+
+    public static List<Path> listFiles(List<String> names) throws IOException {
+        List<Path> result = new ArrayList<Path>();
+
+        for(String name : names) {
+            Path path = Paths.get(name);
+
+            if(Files.isDirectory(path)) {
+                try(Stream<Path> stream = Files.walk(path)) {
+                    result.addAll(stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList()));
+                }
+            } else {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    public int run(List<Path> files) throws IOException, InterruptedException {
+        returnCode = 0;
+        if(ordered) {
+            runOrdered(files);
+        } else {
+            runUnordered(files);
+        }
+        output.flush();
+        return returnCode;
+    }
+
+    private String flatten(Path file, Writer writer) {
+        FlatTagOptions fileOptions = options.toBuilder()
+                .linePrefix(options.getLinePrefix() + file + (char)options.getDelimiter())
+                .build();
+
+        try(ByteSource mapped = ByteSource.map(file); ByteSource source = ByteSource.inflate(mapped)) {
+            FlatTagParser parser = new FlatTagParser(fileOptions, ByteSource.decode(source, options.getInputCharset()), writer);
+
+            parser.setSourceName(file.toString());
+            parser.parse();
+            return null;
+        } catch(IOException e) {
+            return "Cannot open file " + file;
+        } catch(flattag e) {
+            return file + ": " + e.getMessageWithLine();
+        } finally {
+            try {
+                writer.flush();
+            } catch(IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private synchronized void error(String message) {
+        if(message != null) {
+            System.err.println(message);
+            returnCode = 4;
+        }
+    }
+
+    private void runUnordered(List<Path> files) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newWorkStealingPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        try {
+            for(Path file : files) {
+                futures.add(executor.submit(() -> {
+                    error(flatten(file, new ChunkWriter(options.isRaw() ? '\0' : '\n') {
+                        protected void emit(String chunk) throws IOException {
+                            synchronized(output) {
+                                output.write(chunk);
+                            }
+                        }
+                    }));
+                }));
+            }
+            for(Future<?> future : futures) {
+                waitFor(future);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void runOrdered(List<Path> files) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayDeque<FileTask> running = new ArrayDeque<FileTask>();
+        int next = 0;
+
+        try {
+            while(next < files.size() || !running.isEmpty()) {
+                while(next < files.size() && running.size() < threads) {
+                    FileTask task = new FileTask(files.get(next++));
+
+                    task.future = executor.submit(task);
+                    running.addLast(task);
+                }
+
+                FileTask head = running.removeFirst();
+                String chunk;
+
+                while((chunk = head.queue.take()) != END) {
+                    output.write(chunk);
+                }
+                error(waitFor(head.future));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> T waitFor(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch(ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private class FileTask implements Callable<String> {
+
+        private final Path file;
+        private final BlockingQueue<String> queue;
+        private Future<String> future;
+
+        FileTask(Path file) {
+            this.file = file;
+            this.queue = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+        }
+
+        public String call() throws InterruptedException {
+            try {
+                return flatten(file, new ChunkWriter(options.isRaw() ? '\0' : '\n') {
+                    protected void emit(String chunk) throws IOException {
+                        try {
+                            queue.put(chunk);
+                        } catch(InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                });
+            } finally {
+                queue.put(END);
+            }
+        }
+
+    }
+
+    /*
+     * a chunk ends at the end of a line so that lines of different files are not mixed.
+     */
+    private abstract static class ChunkWriter extends Writer {
+
+        private final StringBuilder chunk = new StringBuilder();
+        private final char terminator;
+
+        ChunkWriter(char terminator) {
+            this.terminator = terminator;
+        }
+
+        protected abstract void emit(String chunk) throws IOException;
+
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            chunk.append(cbuf, off, len);
+            if(chunk.length() >= CHUNK_SIZE && chunk.charAt(chunk.length() - 1) == terminator) {
+                flush();
+            }
+        }
+
+        public void flush() throws IOException {
+            if(chunk.length() > 0) {
+                emit(chunk.toString());
+                chunk.setLength(0);
+            }
+        }
+
+        public void close() throws IOException {
+            flush();
+        }
+
+    }
+
+}
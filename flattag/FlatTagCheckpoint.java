@@ -0,0 +1,152 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The state of a parser in a text, from which a parse resumes.
+ * The input offset is of the input file and the output offset is of the output which has been flushed.
+ * <pre>
+ * file := "FTAGCKP" version(1) input-offset(8) output-offset(8) line(4) shared(4) depth(4) (tag label)* text
+ * </pre>
+ * Numbers are big endian and strings and the text are the length(4) of UTF-8 and its bytes.
+ */
+public final class FlatTagCheckpoint {
+
+    private static final byte[] MAGIC = "FTAGCKP".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    public static final long DEFAULT_INTERVAL = 64L << 20;
+
+    private final long inputOffset;
+    private final long outputOffset;
+    private final int lineNo;
+    private final int sharedLength;
+    private final List<String[]> stack;
+    private final byte[] text;
+
+    FlatTagCheckpoint(long inputOffset, long outputOffset, int lineNo, int sharedLength, List<String[]> stack, byte[] text) {
+        this.inputOffset = inputOffset;
+        this.outputOffset = outputOffset;
+        this.lineNo = lineNo;
+        this.sharedLength = sharedLength;
+        this.stack = Collections.unmodifiableList(stack);
+        this.text = text;
+    }
+
+    public static FlatTagCheckpoint read(Path path) throws IOException {
+        try(DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            byte[] magic = new byte[MAGIC.length];
+            long inputOffset, outputOffset;
+            int lineNo, sharedLength;
+            List<String[]> stack = new ArrayList<String[]>();
+
+            input.readFully(magic);
+            if(!Arrays.equals(magic, MAGIC) || input.read() != VERSION) {
+                throw new IOException("not a checkpoint of flattag");
+            }
+            inputOffset = input.readLong();
+            outputOffset = input.readLong();
+            lineNo = input.readInt();
+            sharedLength = input.readInt();
+            for(int depth = input.readInt(); depth > 0; depth--) {
+                stack.add(new String[] { readString(input), readString(input) });
+            }
+            return new FlatTagCheckpoint(inputOffset, outputOffset, lineNo, sharedLength, stack, readBytes(input));
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream input) throws IOException {
+        byte[] result = new byte[input.readInt()];
+
+        input.readFully(result);
+        return result;
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        return new String(readBytes(input), StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * writes the checkpoint to a temporary file and replaces the file of path by it,
+     * so that the file has always a whole checkpoint.
+     */
+    public void write(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            output.write(MAGIC);
+            output.write(VERSION);
+            output.writeLong(inputOffset);
+            output.writeLong(outputOffset);
+            output.writeInt(lineNo);
+            output.writeInt(sharedLength);
+            output.writeInt(stack.size());
+            for(String[] tuple : stack) {
+                writeBytes(output, tuple[0].getBytes(StandardCharsets.UTF_8));
+                writeBytes(output, tuple[1].getBytes(StandardCharsets.UTF_8));
+            }
+            writeBytes(output, text);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * returns the offset of the input file from which the parse resumes.
+     */
+    public long getInputOffset() {
+        return inputOffset;
+    }
+
+    /**
+     * returns the size of the output at the checkpoint, after which the output is discarded at resuming.
+     */
+    public long getOutputOffset() {
+        return outputOffset;
+    }
+
+    public int getLineNo() {
+        return lineNo;
+    }
+
+    int getSharedLength() {
+        return sharedLength;
+    }
+
+    /**
+     * returns the tags and the labels of the open elements from the root.
+     */
+    public List<String[]> getStack() {
+        return stack;
+    }
+
+    /**
+     * returns the UTF-8 bytes of the text which has been read but not been output.
+     */
+    byte[] getText() {
+        return text;
+    }
+
+}
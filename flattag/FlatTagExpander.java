@@ -0,0 +1,105 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A Reader which restores the lines of the compact output to the flat lines.
+ * A compact line is the number of the leading chars of the previous line, one delimiter and the rest of the line.
+ */
+public class FlatTagExpander extends Reader {
+
+    private final Reader input;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+    private char[] line = new char[256];
+    private int lineLength;
+    private int served;
+    private int lineNo;
+
+    public FlatTagExpander(Reader input) {
+        this.input = input;
+        this.position = 0;
+        this.limit = 0;
+        this.lineLength = 0;
+        this.served = 0;
+        this.lineNo = 0;
+    }
+
+    private int readChar() throws IOException {
+        if(position >= limit) {
+            if((limit = input.read(buffer, 0, buffer.length)) <= 0) {
+                return -1;
+            }
+            position = 0;
+        }
+        return buffer[position++];
+    }
+
+    private void append(char ch) {
+        if(lineLength >= line.length) {
+            char[] newLine = new char[line.length * 2];
+
+            System.arraycopy(line, 0, newLine, 0, lineLength);
+            line = newLine;
+        }
+        line[lineLength++] = ch;
+    }
+
+    /*
+     * reads the next line over the previous line in the line buffer.
+     */
+    private boolean expandLine() throws IOException {
+        int ch = readChar(), shared = 0, max = Math.max(lineLength - 1, 0);
+
+        if(ch < 0) {
+            return false;
+        }
+        lineNo++;
+        if(ch < '0' || ch > '9') {
+            throw new IOException("line " + lineNo + ": invalid compact line");
+        }
+        for(; ch >= '0' && ch <= '9'; ch = readChar()) {
+            shared = shared * 10 + ch - '0';
+            if(shared > max) {
+                throw new IOException("line " + lineNo + ": invalid shared length");
+            }
+        }
+        if(ch < 0 || ch == '\n') {
+            throw new IOException("line " + lineNo + ": invalid compact line");
+        }
+        lineLength = shared;
+        while((ch = readChar()) >= 0 && ch != '\n') {
+            append((char)ch);
+        }
+        append('\n');
+        served = 0;
+        return true;
+    }
+
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        int length;
+
+        if(len == 0) {
+            return 0;
+        } else if(served >= lineLength && !expandLine()) {
+            return -1;
+        }
+        length = Math.min(len, lineLength - served);
+        System.arraycopy(line, served, cbuf, off, length);
+        served += length;
+        return length;
+    }
+
+    public void close() throws IOException {
+        input.close();
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Flats one document whose record elements are flattened by worker threads.
+ * The main parser cuts the records out of the input and the outputs are written in document order.
+ */
+public class FlatTagFanout {
+
+    private static final int GROUP_SIZE = 65536;
+    private static final Future<Output> END = CompletableFuture.completedFuture(null);
+
+    private final FlatTagOptions options;
+    private final String recordElement;
+    private final Writer output;
+    private final int threads;
+
+    private ExecutorService executor;
+    private BlockingQueue<Future<Output>> pending;
+    private StringWriter inline;
+    private List<Object> group;
+    private int groupSize;
+    private volatile Exception failure;
+    private String sourceName;
+
+    public FlatTagFanout(FlatTagOptions options, String recordElement, Writer output, int threads) {
+        this.options = options;
+        this.recordElement = recordElement;
+        this.output = output;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * names the source in the JFR event of the file.
+     */
+    public void setSourceName(String sourceName) {
+        this.sourceName = sourceName;
+    }
+
+    private static class Record {
+
+        private final byte[] body;
+        private final List<String[]> stack;
+        private final int lineNo;
+
+        Record(byte[] body, List<String[]> stack, int lineNo) {
+            this.body = body;
+            this.stack = stack;
+            this.lineNo = lineNo;
+        }
+
+    }
+
+    private static class Output {
+
+        private final String text;
+        private final flattag error;
+
+        Output(String text, flattag error) {
+            this.text = text;
+            this.error = error;
+        }
+
+    }
+
+    public void run(ByteSource source) throws IOException, flattag, InterruptedException {
+        FlatTagParser parser;
+        flattag error = null;
+        Thread writer = new Thread(this::drain, "flattag-writer");
+
+        executor = Executors.newFixedThreadPool(threads);
+        pending = new ArrayBlockingQueue<Future<Output>>(threads * 4);
+        inline = new StringWriter();
+        group = new ArrayList<Object>();
+        groupSize = 0;
+        failure = null;
+        parser = new FlatTagParser(options, source, inline);
+        parser.setRecordDispatcher(recordElement, this::dispatch);
+        parser.setSourceName(sourceName);
+        writer.start();
+        try {
+            parser.parse();
+        } catch(flattag e) {
+            error = e;
+        } finally {
+            try {
+                submitGroup();
+                pending.put(END);
+                writer.join();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        output.flush();
+        if(failure instanceof flattag) {
+            throw (flattag)failure;
+        } else if(failure != null) {
+            throw new IOException(failure);
+        } else if(error != null) {
+            throw error;
+        }
+    }
+
+    private void dispatch(byte[] body, List<String[]> stack, int lineNo) throws IOException, flattag {
+        if(failure instanceof flattag) {
+            throw (flattag)failure;
+        } else if(failure != null) {
+            throw new IOException(failure);
+        }
+        addInline();
+        group.add(new Record(body, stack, lineNo));
+        groupSize += body.length;
+        if(groupSize >= GROUP_SIZE) {
+            submitGroup();
+        }
+    }
+
+    private void addInline() {
+        StringBuffer buffer = inline.getBuffer();
+
+        if(buffer.length() > 0) {
+            group.add(buffer.toString());
+            buffer.setLength(0);
+        }
+    }
+
+    private void submitGroup() throws IOException {
+        final List<Object> items;
+
+        addInline();
+        if(group.isEmpty()) {
+            return;
+        }
+        items = group;
+        group = new ArrayList<Object>();
+        groupSize = 0;
+        try {
+            pending.put(executor.submit(() -> flattenGroup(items)));
+        } catch(InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private Output flattenGroup(List<Object> items) throws IOException {
+        StringWriter result = new StringWriter();
+
+        try {
+            for(Object item : items) {
+                if(item instanceof Record) {
+                    Record record = (Record)item;
+                    FlatTagParser parser = new FlatTagParser(options, ByteSource.of(record.body), result);
+
+                    parser.seed(record.stack);
+                    parser.setLineNo(record.lineNo);
+                    parser.setCountsInput(false);
+                    parser.parse();
+                } else {
+                    result.write((String)item);
+                }
+            }
+            return new Output(result.toString(), null);
+        } catch(flattag e) {
+            return new Output(result.toString(), e);
+        }
+    }
+
+    private void drain() {
+        Future<Output> future;
+
+        try {
+            while((future = pending.take()) != END) {
+                try {
+                    Output result = future.get();
+
+                    if(failure == null) {
+                        output.write(result.text);
+                        failure = result.error;
+                    }
+                } catch(ExecutionException e) {
+                    if(failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+                    }
+                } catch(IOException e) {
+                    // keeps taking the queue so that the parser is not blocked
+                    failure = e;
+                }
+            }
+        } catch(InterruptedException e) {
+            failure = e;
+        }
+    }
+
+}
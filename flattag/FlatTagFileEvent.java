@@ -0,0 +1,45 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JFR event of a file which a parser has flattened.
+ */
+@Name("flattag.File")
+@Label("Flattened File")
+@Category("flattag")
+@Description("A file which a parser of flattag has flattened")
+public class FlatTagFileEvent extends Event {
+
+    @Label("File")
+    String file;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+
+    @Label("Lines Emitted")
+    long linesEmitted;
+
+    @Label("Tags Opened")
+    long tagsOpened;
+
+    @Label("Max Depth")
+    int maxDepth;
+
+    @Label("Longest Text")
+    @DataAmount
+    long longestText;
+
+}
@@ -0,0 +1,29 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JFR event of a write of the buffer of ByteSink to its channel.
+ */
+@Name("flattag.Flush")
+@Label("Output Flush")
+@Category("flattag")
+@Description("A write of the output buffer of flattag to its channel")
+public class FlatTagFlushEvent extends Event {
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+
+}
@@ -0,0 +1,50 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.IOException;
+
+/**
+ * Receives the events of a document from FlatTagParser.
+ * The CharSequence arguments are views reused by the parser and valid only during the call.
+ */
+public interface FlatTagHandler {
+
+    /**
+     * the attributes of the element just opened.
+     */
+    interface Attributes {
+        int size();
+        CharSequence getKey(int index);
+        CharSequence getValue(int index);
+    }
+
+    /**
+     * called when an element is opened.
+     * onAttribute is called for each attribute after this.
+     */
+    void onOpen(CharSequence name, Attributes attributes) throws IOException;
+
+    /**
+     * called for an element which is closed, by its close tag, automatically by -c or at a close tag of an ancestor.
+     */
+    void onClose(CharSequence name) throws IOException;
+
+    /**
+     * called for the text before an open or close tag, and with an empty text for an empty element.
+     */
+    void onText(CharSequence text) throws IOException;
+
+    void onAttribute(CharSequence key, CharSequence value) throws IOException;
+
+    /**
+     * called at the end of the document.
+     */
+    default void onEnd() throws IOException {
+    }
+
+}
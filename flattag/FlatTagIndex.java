@@ -0,0 +1,330 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sidecar index of a document which has the offset, the line number and the ancestors
+ * of every interval-th element of a tag, or of all elements.
+ * A query seeks to the nearest indexed element before the requested element and flattens only the requested element.
+ * <pre>
+ * file    := "FTAGIDX" version(1) entry* footer trailer
+ * entry   := offset(8) line(4) stack(4)
+ * footer  := input-size(8) element-count(8) interval(4) element count(4) stack*
+ * stack   := depth(4) (tag label)*
+ * trailer := footer-offset(8) "FIDX"
+ * </pre>
+ * The n-th entry is of the (n * interval)-th element from 0. Numbers are big endian and strings are
+ * the length(4) of UTF-8 and its bytes. The element is empty for all elements.
+ * The offsets are of the input file, which must be neither compressed nor encoded other than UTF-8.
+ * The labels of the ancestors depend on -I, -L, -a, -i and -c, so a query must be given the options of the index.
+ */
+public final class FlatTagIndex implements Closeable {
+
+    private static final byte[] MAGIC = "FTAGIDX".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRAILER_MAGIC = "FIDX".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 1;
+    private static final int ENTRY_SIZE = 16;
+    private static final int TRAILER_SIZE = 8 + TRAILER_MAGIC.length;
+
+    public static final int DEFAULT_INTERVAL = 1024;
+
+    private final FileChannel channel;
+    private final long entryCount;
+    private long inputSize;
+    private long elementCount;
+    private int interval;
+    private String element;
+    private final List<List<String[]>> stacks = new ArrayList<List<String[]>>();
+
+    private FlatTagIndex(FileChannel channel) throws IOException {
+        ByteBuffer header = read(channel, 0, HEADER_SIZE);
+        ByteBuffer trailer = read(channel, channel.size() - TRAILER_SIZE, TRAILER_SIZE);
+        byte[] magic = new byte[MAGIC.length];
+        byte[] trailerMagic = new byte[TRAILER_MAGIC.length];
+        long footer;
+
+        this.channel = channel;
+        header.get(magic);
+        trailer.position(8);
+        trailer.get(trailerMagic);
+        if(!Arrays.equals(magic, MAGIC) || header.get() != VERSION || !Arrays.equals(trailerMagic, TRAILER_MAGIC)) {
+            throw new IOException("not an index of flattag");
+        }
+        footer = trailer.getLong(0);
+        if(footer < HEADER_SIZE || (footer - HEADER_SIZE) % ENTRY_SIZE != 0) {
+            throw new IOException("not an index of flattag");
+        }
+        entryCount = (footer - HEADER_SIZE) / ENTRY_SIZE;
+        readFooter(read(channel, footer, (int)(channel.size() - TRAILER_SIZE - footer)));
+    }
+
+    public static FlatTagIndex open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            return new FlatTagIndex(channel);
+        } catch(IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * writes the index of the elements of the tag, or of all elements if element is null, of the input file.
+     */
+    public static void build(FlatTagOptions options, Path input, Path index, String element, int interval)
+            throws IOException, flattag {
+        if(interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        try(ByteSource mapped = ByteSource.map(input);
+                ByteSource source = ByteSource.decode(ByteSource.inflate(mapped), options.getInputCharset());
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(index)))) {
+            IndexBuilder builder = new IndexBuilder(output);
+            FlatTagParser parser = new FlatTagParser(options, source, builder);
+
+            if(!source.isMapped()) {
+                throw new IOException("compressed or encoded input can not be indexed");
+            }
+            output.write(MAGIC);
+            output.write(VERSION);
+            parser.setElementListener(element, interval, builder);
+            parser.setSourceName(input.toString());
+            parser.parse();
+            builder.writeFooter(Files.size(input), parser.getElementCount(), interval, element);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer result;
+
+        if(position < 0 || length < 0) {
+            throw new IOException("not an index of flattag");
+        }
+        result = ByteBuffer.allocate(length);
+        while(result.hasRemaining()) {
+            if(channel.read(result, position + result.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        result.flip();
+        return result;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void readFooter(ByteBuffer buffer) {
+        int count;
+
+        inputSize = buffer.getLong();
+        elementCount = buffer.getLong();
+        interval = buffer.getInt();
+        element = readString(buffer);
+        element = element.isEmpty() ? null : element;
+        count = buffer.getInt();
+        for(int i = 0; i < count; i++) {
+            List<String[]> stack = new ArrayList<String[]>();
+
+            for(int depth = buffer.getInt(); depth > 0; depth--) {
+                stack.add(new String[] { readString(buffer), readString(buffer) });
+            }
+            stacks.add(stack);
+        }
+    }
+
+    /**
+     * returns the indexed tag or null if all elements are indexed.
+     */
+    public String getElement() {
+        return element;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * returns the number of the elements of the tag in the document.
+     */
+    public long getElementCount() {
+        return elementCount;
+    }
+
+    /**
+     * returns the entry of the nearest indexed element before or at the element of ordinal.
+     */
+    public Entry find(long ordinal) throws IOException {
+        long index = ordinal / interval;
+        ByteBuffer entry;
+
+        if(ordinal < 0 || ordinal >= elementCount || index >= entryCount) {
+            throw new IndexOutOfBoundsException("element " + ordinal);
+        }
+        entry = read(channel, HEADER_SIZE + index * ENTRY_SIZE, ENTRY_SIZE);
+        return new Entry(index * interval, entry.getLong(), entry.getInt(), stacks.get(entry.getInt()));
+    }
+
+    /**
+     * flattens the element of ordinal from 0 in the input file to output.
+     */
+    public void query(FlatTagOptions options, Path input, long ordinal, Writer output) throws IOException, flattag {
+        Entry entry = find(ordinal);
+
+        if(Files.size(input) != inputSize) {
+            throw new IOException("the index is not of " + input);
+        }
+        try(ByteSource source = ByteSource.map(input, entry.getOffset())) {
+            FlatTagParser parser = new FlatTagParser(options, source, output);
+
+            parser.seed(entry.getAncestors());
+            parser.setLineNo(entry.getLineNo());
+            parser.setSourceName(input.toString());
+            parser.setTarget(element, ordinal - entry.getOrdinal());
+            parser.parse();
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * an indexed element.
+     */
+    public static final class Entry {
+
+        private final long ordinal;
+        private final long offset;
+        private final int lineNo;
+        private final List<String[]> ancestors;
+
+        Entry(long ordinal, long offset, int lineNo, List<String[]> ancestors) {
+            this.ordinal = ordinal;
+            this.offset = offset;
+            this.lineNo = lineNo;
+            this.ancestors = ancestors;
+        }
+
+        public long getOrdinal() {
+            return ordinal;
+        }
+
+        /**
+         * returns the offset of '<' of the open tag in the input file.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLineNo() {
+            return lineNo;
+        }
+
+        /**
+         * returns the tags and the labels of the ancestors from the root.
+         */
+        public List<String[]> getAncestors() {
+            return ancestors;
+        }
+
+    }
+
+    /*
+     * writes the entries while the document is parsed, and the ancestors of the entries are shared.
+     */
+    private static class IndexBuilder implements FlatTagParser.ElementListener, FlatTagHandler {
+
+        private final DataOutputStream output;
+        private final Map<List<String>, Integer> stackIds = new HashMap<List<String>, Integer>();
+        private final List<List<String>> stacks = new ArrayList<List<String>>();
+        private long size;
+
+        IndexBuilder(DataOutputStream output) {
+            this.output = output;
+            this.size = HEADER_SIZE;
+        }
+
+        public void onElement(long ordinal, long offset, int lineNo, List<String[]> ancestors) throws IOException {
+            List<String> key = new ArrayList<String>();
+            Integer id;
+
+            for(String[] tuple : ancestors) {
+                key.add(tuple[0]);
+                key.add(tuple[1]);
+            }
+            if((id = stackIds.get(key)) == null) {
+                id = stacks.size();
+                stackIds.put(key, id);
+                stacks.add(key);
+            }
+            output.writeLong(offset);
+            output.writeInt(lineNo);
+            output.writeInt(id);
+            size += ENTRY_SIZE;
+        }
+
+        private void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+
+        void writeFooter(long inputSize, long elementCount, int interval, String element) throws IOException {
+            output.writeLong(inputSize);
+            output.writeLong(elementCount);
+            output.writeInt(interval);
+            writeString(element != null ? element : "");
+            output.writeInt(stacks.size());
+            for(List<String> stack : stacks) {
+                output.writeInt(stack.size() / 2);
+                for(String value : stack) {
+                    writeString(value);
+                }
+            }
+            output.writeLong(size);
+            output.write(TRAILER_MAGIC);
+        }
+
+        public void onOpen(CharSequence name, Attributes attributes) {
+        }
+
+        public void onClose(CharSequence name) {
+        }
+
+        public void onText(CharSequence text) {
+        }
+
+        public void onAttribute(CharSequence key, CharSequence value) {
+        }
+
+    }
+
+}
@@ -0,0 +1,352 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable options of FlatTagParser.
+ */
+public final class FlatTagOptions {
+
+    public static final int DEFAULT_DELIMITER = '\t';
+    public static final int DEFAULT_ATTR_PREFIX = '@';
+    public static final int DEFAULT_ATTR_INFIX = '=';
+    public static final String DEFAULT_LF = " ";
+    public static final String DEFAULT_TAB = " ";
+    public static final int DEFAULT_MAX_TEXT = 1 << 20;
+
+    public static final FlatTagOptions DEFAULT = builder().build();
+
+    private final int delimiter;
+    private final int attrPrefix;
+    private final int attrInfix;
+    private final String lf;
+    private final String tab;
+    private final boolean ignoreAttr;
+    private final boolean attrLine;
+    private final Set<String> autoClose;
+    private final Set<String> skipTags;
+    private final String linePrefix;
+    private final PathFilter pathFilter;
+    private final String rowElement;
+    private final List<String> rowFields;
+    private final Charset inputCharset;
+    private final boolean compact;
+    private final int maxText;
+    private final boolean decodeReferences;
+    private final boolean raw;
+    private final FlatTagStats stats;
+
+    private FlatTagOptions(Builder builder) {
+        this.delimiter = builder.delimiter;
+        this.attrPrefix = builder.attrPrefix;
+        this.attrInfix = builder.attrInfix;
+        this.lf = builder.lf;
+        this.tab = builder.tab;
+        this.ignoreAttr = builder.ignoreAttr;
+        this.attrLine = builder.attrLine;
+        this.autoClose = Collections.unmodifiableSet(new HashSet<String>(builder.autoClose));
+        this.skipTags = Collections.unmodifiableSet(new HashSet<String>(builder.skipTags));
+        this.linePrefix = builder.linePrefix;
+        this.pathFilter = builder.pathFilter;
+        this.rowElement = builder.rowElement;
+        this.rowFields = Collections.unmodifiableList(new ArrayList<String>(builder.rowFields));
+        this.inputCharset = builder.inputCharset;
+        this.compact = builder.compact;
+        this.maxText = builder.maxText;
+        this.decodeReferences = builder.decodeReferences;
+        this.raw = builder.raw;
+        this.stats = builder.stats;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Builder toBuilder() {
+        return builder()
+                .delimiter(delimiter)
+                .attrPrefix(attrPrefix)
+                .attrInfix(attrInfix)
+                .lf(lf)
+                .tab(tab)
+                .ignoreAttr(ignoreAttr)
+                .attrLine(attrLine)
+                .autoClose(autoClose)
+                .skipTags(skipTags)
+                .linePrefix(linePrefix)
+                .pathFilter(pathFilter)
+                .rowElement(rowElement)
+                .rowFields(rowFields)
+                .inputCharset(inputCharset)
+                .compact(compact)
+                .maxText(maxText)
+                .decodeReferences(decodeReferences)
+                .raw(raw)
+                .stats(stats);
+    }
+
+    public int getDelimiter() {
+        return delimiter;
+    }
+
+    public int getAttrPrefix() {
+        return attrPrefix;
+    }
+
+    public int getAttrInfix() {
+        return attrInfix;
+    }
+
+    public String getLf() {
+        return lf;
+    }
+
+    public String getTab() {
+        return tab;
+    }
+
+    public boolean isIgnoreAttr() {
+        return ignoreAttr;
+    }
+
+    public boolean isAttrLine() {
+        return attrLine;
+    }
+
+    public Set<String> getAutoClose() {
+        return autoClose;
+    }
+
+    /**
+     * returns the tags whose elements are skipped with their descendants.
+     */
+    public Set<String> getSkipTags() {
+        return skipTags;
+    }
+
+    public String getLinePrefix() {
+        return linePrefix;
+    }
+
+    /**
+     * returns the filter of output lines or null if all lines are output.
+     */
+    public PathFilter getPathFilter() {
+        return pathFilter;
+    }
+
+    /**
+     * returns the tag of elements which are output as one delimited row or null.
+     */
+    public String getRowElement() {
+        return rowElement;
+    }
+
+    /**
+     * returns the tags and '@'-prefixed attributes of the row element which are the fields of a row.
+     */
+    public List<String> getRowFields() {
+        return rowFields;
+    }
+
+    /**
+     * returns the charset of input files or null if it is detected by ByteSource.decode.
+     * The parser itself always reads UTF-8.
+     */
+    public Charset getInputCharset() {
+        return inputCharset;
+    }
+
+    /**
+     * returns true if each line begins with the number of chars of the path shared with the previous line
+     * and the shared chars are omitted. FlatTagExpander restores the lines.
+     */
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * returns the number of the bytes of a text which is buffered before its line is written in chunks.
+     * Handlers, rows and pull get the whole text regardless of this.
+     */
+    public int getMaxText() {
+        return maxText;
+    }
+
+    /**
+     * returns true if the character references of texts and attribute values like &amp;amp; and &amp;#x3042;
+     * are decoded. Named references are the entities of HTML 4 and &amp;apos;.
+     */
+    public boolean isDecodeReferences() {
+        return decodeReferences;
+    }
+
+    /**
+     * returns true if lines are terminated by NUL and newlines and tabs of texts are not replaced.
+     */
+    public boolean isRaw() {
+        return raw;
+    }
+
+    /**
+     * returns the counters to which the parsers of these options add their counts, or null.
+     */
+    public FlatTagStats getStats() {
+        return stats;
+    }
+
+    public static class Builder {
+
+        private int delimiter = DEFAULT_DELIMITER;
+        private int attrPrefix = DEFAULT_ATTR_PREFIX;
+        private int attrInfix = DEFAULT_ATTR_INFIX;
+        private String lf = DEFAULT_LF;
+        private String tab = DEFAULT_TAB;
+        private boolean ignoreAttr = false;
+        private boolean attrLine = false;
+        private Set<String> autoClose = new HashSet<String>();
+        private Set<String> skipTags = new HashSet<String>();
+        private String linePrefix = "";
+        private PathFilter pathFilter = null;
+        private String rowElement = null;
+        private List<String> rowFields = new ArrayList<String>();
+        private Charset inputCharset = null;
+        private boolean compact = false;
+        private int maxText = DEFAULT_MAX_TEXT;
+        private boolean decodeReferences = false;
+        private boolean raw = false;
+        private FlatTagStats stats = null;
+
+        private Builder() {}
+
+        public Builder delimiter(int delimiter) {
+            this.delimiter = delimiter;
+            return this;
+        }
+
+        public Builder attrPrefix(int attrPrefix) {
+            this.attrPrefix = attrPrefix;
+            return this;
+        }
+
+        public Builder attrInfix(int attrInfix) {
+            this.attrInfix = attrInfix;
+            return this;
+        }
+
+        public Builder lf(String lf) {
+            this.lf = lf;
+            return this;
+        }
+
+        public Builder tab(String tab) {
+            this.tab = tab;
+            return this;
+        }
+
+        public Builder ignoreAttr(boolean ignoreAttr) {
+            this.ignoreAttr = ignoreAttr;
+            return this;
+        }
+
+        public Builder attrLine(boolean attrLine) {
+            this.attrLine = attrLine;
+            return this;
+        }
+
+        public Builder autoClose(Set<String> autoClose) {
+            this.autoClose = new HashSet<String>(autoClose);
+            return this;
+        }
+
+        public Builder addAutoClose(String tagName) {
+            autoClose.add(tagName);
+            return this;
+        }
+
+        public Builder skipTags(Set<String> skipTags) {
+            this.skipTags = new HashSet<String>(skipTags);
+            return this;
+        }
+
+        public Builder addSkipTag(String tagName) {
+            skipTags.add(tagName);
+            return this;
+        }
+
+        public Builder linePrefix(String linePrefix) {
+            this.linePrefix = linePrefix;
+            return this;
+        }
+
+        public Builder pathFilter(PathFilter pathFilter) {
+            this.pathFilter = pathFilter;
+            return this;
+        }
+
+        public Builder rowElement(String rowElement) {
+            this.rowElement = rowElement;
+            return this;
+        }
+
+        public Builder rowFields(List<String> rowFields) {
+            this.rowFields = new ArrayList<String>(rowFields);
+            return this;
+        }
+
+        public Builder addRowField(String field) {
+            rowFields.add(field);
+            return this;
+        }
+
+        public Builder inputCharset(Charset inputCharset) {
+            this.inputCharset = inputCharset;
+            return this;
+        }
+
+        public Builder compact(boolean compact) {
+            this.compact = compact;
+            return this;
+        }
+
+        public Builder maxText(int maxText) {
+            if(maxText <= 0) {
+                throw new IllegalArgumentException("maxText must be positive");
+            }
+            this.maxText = maxText;
+            return this;
+        }
+
+        public Builder decodeReferences(boolean decodeReferences) {
+            this.decodeReferences = decodeReferences;
+            return this;
+        }
+
+        public Builder raw(boolean raw) {
+            this.raw = raw;
+            return this;
+        }
+
+        public Builder stats(FlatTagStats stats) {
+            this.stats = stats;
+            return this;
+        }
+
+        public FlatTagOptions build() {
+            return new FlatTagOptions(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,2166 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A parser which flats one tagged document.
+ * An instance holds its own tag stack and line number and shares nothing with other instances,
+ * so many documents can be flattened concurrently by their own parsers.
+ */
+public class FlatTagParser {
+
+    private final FlatTagOptions options;
+    private final ByteSource source;
+    private final PrintWriter output;
+    private final ByteSink sink;
+    private final int delimiter;
+    private final int attrPrefix;
+    private final int attrInfix;
+    private final byte[] lfBytes;
+    private final byte[] tabBytes;
+    private final boolean ignoreAttr;
+    private final boolean attrLine;
+    private final Set<String> autoClose;
+    private final Set<String> skipTags;
+    private final String linePrefix;
+    private final PathFilter.Matcher filter;
+    private final boolean rowMode;
+    private final Set<String> fields;
+    private final byte[][] attributeFields;
+    private final byte[] delimiterBytes;
+    private final boolean compact;
+    private final boolean decodeReferences;
+    private final boolean raw;
+    private final ByteBuilder reference = new ByteBuilder(MAX_REFERENCE);
+    private int referenceState;
+    private int referenceNode;
+    private int referenceValue;
+    private int referenceDigits;
+    private final ByteBuilder marker = new ByteBuilder(16);
+    private byte[] endName;
+    private int endTag;
+    private int endMatched;
+    private int skipDepth;
+    private boolean rawSkip;
+    private boolean skipClosing;
+    private boolean skipOpened;
+    private boolean skipSlash;
+    private int skipQuote;
+    private final int maxText;
+    private boolean streaming;
+    private long streamedLength;
+
+    private final TagSymbols symbols;
+    private int[] tagStack;
+    private int depth;
+    private int[] openCounts;
+    private boolean[] autoCloseTags;
+    private boolean[] fieldTags;
+    private byte[][] skipNames;
+    private boolean[] rawTextTags;
+    private int knownSymbols;
+    private char[] prefix;
+    private CharBuffer prefixView;
+    private int prefixLength;
+    private int[] prefixStarts;
+    private int sharedLength;
+    private final char[] digits = new char[10];
+    private int[] filterStates;
+    private boolean selected;
+    private final ByteBuilder attributes;
+    private int[] attrOffsets;
+    private int attrCount;
+    private int keyStart;
+    private int keyEnd;
+    private int lineNo;
+    private ByteBuffer buffer;
+    private long consumed;
+    private int pushback;
+    private int recordSymbol;
+    private byte[] recordElement;
+    private int[] recordOpens;
+    private int recordMark;
+    private int recordTagStart;
+    private final ByteBuilder recordBody = new ByteBuilder();
+    private List<String[]> recordAncestors;
+    private RecordDispatcher dispatcher;
+    private final byte[] sequence = new byte[4];
+    private int sequenceLength;
+    private int rowSymbol;
+    private int rowDepth;
+    private int fieldDepth;
+    private int cells;
+    private ByteBuilder row;
+    private ByteBuilder cell;
+    private final ByteBuilder builder = new ByteBuilder();
+    private int state = INNER_TAG;
+    private int openTag;
+    private int doctypeBrackets;
+    private boolean finished;
+    private Deque<FlatRecord> records;
+    private List<String> pathTags;
+    private List<String> pathLabels;
+    private ElementListener elementListener;
+    private int countSymbol = -1;
+    private int interval;
+    private long elementCount;
+    private long target = -1;
+    private boolean skipping;
+    private int stopDepth = -1;
+    private boolean stopped;
+    private long tagOffset;
+    private int tagLineNo;
+    private CheckpointListener checkpointListener;
+    private long checkpointInterval;
+    private long nextCheckpoint;
+    private long outputBase;
+    private final FlatTagStats stats;
+    private final FlatTagStats.Counters counters = new FlatTagStats.Counters();
+    private final FlatTagStats.Counters published = new FlatTagStats.Counters();
+    private long statsTime;
+    private long statsWriteNanos;
+    private long sourceStart;
+    private boolean countsInput = true;
+    private String sourceName;
+    private final FlatTagHandler handler;
+    private final Utf8View textView;
+    private Utf8View[] attributeViews;
+    private final FlatTagHandler.Attributes attributeList;
+
+    public FlatTagParser(FlatTagOptions options, ByteSource source, Writer output) {
+        this(options, source, output, null);
+    }
+
+    /**
+     * creates a parser which sends the events of the document to handler instead of writing them.
+     * The rows of -R are not made in this mode.
+     */
+    public FlatTagParser(FlatTagOptions options, ByteSource source, FlatTagHandler handler) {
+        this(options, source, null, handler);
+    }
+
+    private FlatTagParser(FlatTagOptions options, ByteSource source, Writer output, FlatTagHandler handler) {
+        this.options = options;
+        this.source = source;
+        this.sink = output instanceof ByteSink ? (ByteSink)output : null;
+        if(output == null || sink != null) {
+            this.output = null;
+        } else {
+            this.output = output instanceof PrintWriter ? (PrintWriter)output : new PrintWriter(output);
+        }
+        this.handler = handler;
+        this.textView = new Utf8View();
+        this.attributeViews = new Utf8View[0];
+        this.attributeList = new FlatTagHandler.Attributes() {
+            public int size() {
+                return attrCount;
+            }
+
+            public CharSequence getKey(int index) {
+                return attributeView(index * 2);
+            }
+
+            public CharSequence getValue(int index) {
+                return attributeView(index * 2 + 1);
+            }
+        };
+        this.delimiter = options.getDelimiter();
+        this.attrPrefix = options.getAttrPrefix();
+        this.attrInfix = options.getAttrInfix();
+        this.raw = options.isRaw();
+        this.decodeReferences = options.isDecodeReferences();
+        this.lfBytes = (raw ? "\n" : options.getLf()).getBytes(StandardCharsets.UTF_8);
+        this.tabBytes = (raw ? "\t" : options.getTab()).getBytes(StandardCharsets.UTF_8);
+        this.ignoreAttr = options.isIgnoreAttr();
+        this.attrLine = options.isAttrLine();
+        this.autoClose = options.getAutoClose();
+        this.skipTags = new HashSet<String>();
+        for(String skipTag : options.getSkipTags()) {
+            skipTags.add(toLowerAscii(skipTag));
+        }
+        this.linePrefix = options.getLinePrefix();
+        this.filter = options.getPathFilter() != null ? options.getPathFilter().matcher() : null;
+        this.symbols = new TagSymbols();
+        this.tagStack = new int[16];
+        this.depth = 0;
+        this.openCounts = new int[32];
+        this.autoCloseTags = new boolean[32];
+        this.fieldTags = new boolean[32];
+        this.skipNames = new byte[32][];
+        this.rawTextTags = new boolean[32];
+        this.knownSymbols = 0;
+        this.prefix = new char[256];
+        this.prefixView = CharBuffer.wrap(prefix);
+        this.attributes = new ByteBuilder();
+        this.attrOffsets = new int[32];
+        this.attrCount = 0;
+        this.prefixLength = 0;
+        this.prefixStarts = new int[16];
+        appendPrefix(linePrefix);
+        this.prefixStarts[0] = prefixLength;
+        this.filterStates = new int[17];
+        this.filterStates[0] = filter != null ? filter.start() : 0;
+        this.selected = filter == null || filter.isSelected(filterStates[0]);
+        this.lineNo = 1;
+        this.buffer = null;
+        this.pushback = -1;
+        this.rowMode = options.getRowElement() != null && handler == null;
+        this.fields = new HashSet<String>();
+        this.delimiterBytes = String.valueOf((char)delimiter).getBytes(StandardCharsets.UTF_8);
+        this.compact = options.isCompact();
+        this.maxText = options.getMaxText();
+        this.sharedLength = 0;
+        this.stats = options.getStats();
+        this.statsTime = stats != null ? System.nanoTime() : 0;
+
+        List<byte[]> attributeNames = new ArrayList<byte[]>();
+
+        for(String field : options.getRowFields()) {
+            if(field.startsWith("@")) {
+                attributeNames.add(field.substring(1).getBytes(StandardCharsets.UTF_8));
+            } else {
+                fields.add(field);
+            }
+        }
+        this.attributeFields = attributeNames.toArray(new byte[0][]);
+        if(rowMode) {
+            this.rowSymbol = intern(options.getRowElement());
+            this.row = new ByteBuilder();
+            this.cell = new ByteBuilder();
+        }
+    }
+
+    /**
+     * creates a parser whose records are pulled by iterator() or stream().
+     */
+    public FlatTagParser(FlatTagOptions options, ByteSource source) {
+        this(options, source, null, null);
+    }
+
+    /**
+     * thrown by the iterator and the stream if the document is invalid.
+     */
+    public static class ParseException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public ParseException(flattag cause) {
+            super(cause.getMessageWithLine(), cause);
+        }
+
+        public flattag getCause() {
+            return (flattag)super.getCause();
+        }
+
+    }
+
+    /**
+     * receives the bytes of a record element, which is following its open tag,
+     * and the tag stack whose last element is the record.
+     */
+    interface RecordDispatcher {
+        void dispatch(byte[] body, List<String[]> stack, int lineNo) throws IOException, flattag;
+    }
+
+    void setRecordDispatcher(String recordElement, RecordDispatcher dispatcher) {
+        this.recordSymbol = intern(recordElement);
+        this.recordElement = recordElement.getBytes(StandardCharsets.UTF_8);
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * receives the open tags of the counted elements for an index.
+     * offset is the offset in the input of '<' of the open tag and ancestors is the tag stack of its parent.
+     */
+    interface ElementListener {
+        void onElement(long ordinal, long offset, int lineNo, List<String[]> ancestors) throws IOException;
+    }
+
+    /*
+     * counts the elements of the tag or all elements if tag is null.
+     */
+    private void countElements(String element) {
+        this.countSymbol = element != null ? intern(element) : -1;
+        this.elementCount = 0;
+    }
+
+    /**
+     * calls listener at every interval-th element of the tag, or of all elements if element is null,
+     * from the first one.
+     */
+    void setElementListener(String element, int interval, ElementListener listener) {
+        countElements(element);
+        this.interval = interval;
+        this.elementListener = listener;
+    }
+
+    /**
+     * returns the number of the counted elements which have been opened.
+     */
+    long getElementCount() {
+        return elementCount;
+    }
+
+    /**
+     * outputs only the element whose ordinal from the beginning of the source is target
+     * and ends the parse when it is closed.
+     * The source is usually a part of a document which begins at an element in an index.
+     */
+    void setTarget(String element, long target) {
+        countElements(element);
+        this.target = target;
+        this.skipping = true;
+        select();
+    }
+
+    /**
+     * receives the checkpoints of a parse.
+     */
+    interface CheckpointListener {
+        void onCheckpoint(FlatTagCheckpoint checkpoint) throws IOException;
+    }
+
+    /**
+     * takes a checkpoint in the first text after every interval bytes of the input,
+     * which is only for a parser writing to a ByteSink.
+     */
+    void setCheckpointListener(long interval, CheckpointListener listener) {
+        if(sink == null) {
+            throw new IllegalStateException("checkpoints need a ByteSink");
+        }
+        this.checkpointInterval = interval;
+        this.nextCheckpoint = offset() + interval;
+        this.checkpointListener = listener;
+    }
+
+    /**
+     * takes a checkpoint in the next text.
+     */
+    void requestCheckpoint() {
+        nextCheckpoint = 0;
+    }
+
+    /**
+     * restores the state of the checkpoint, where the source begins.
+     */
+    void resume(FlatTagCheckpoint checkpoint) {
+        seed(checkpoint.getStack());
+        lineNo = checkpoint.getLineNo();
+        sharedLength = checkpoint.getSharedLength();
+        builder.append(checkpoint.getText());
+        consumed = checkpoint.getInputOffset();
+        sourceStart = consumed;
+        outputBase = checkpoint.getOutputOffset() - (sink != null ? sink.getPosition() : 0);
+    }
+
+    /*
+     * the output is flushed so that it has all lines before the checkpoint.
+     */
+    private void checkpoint() throws IOException {
+        sink.flush();
+        checkpointListener.onCheckpoint(new FlatTagCheckpoint(offset(), outputBase + sink.getPosition(), lineNo,
+                sharedLength, snapshot(), builder.toByteArray()));
+        nextCheckpoint = offset() + checkpointInterval;
+    }
+
+    void seed(List<String[]> stack) {
+        for(String[] tuple : stack) {
+            addTagStack(intern(tuple[0]), tuple[1]);
+        }
+    }
+
+    private List<String[]> snapshot() {
+        return snapshot(0, depth, new ArrayList<String[]>());
+    }
+
+    /*
+     * adds the tags and the labels of the stack between from and to to result.
+     */
+    private List<String[]> snapshot(int from, int to, List<String[]> result) {
+        for(int i = from; i < to; i++) {
+            int end = i + 1 < depth ? prefixStarts[i + 1] : prefixLength;
+
+            result.add(consTuple(symbols.name(tagStack[i]), new String(prefix, prefixStarts[i], end - prefixStarts[i] - 1)));
+        }
+        return result;
+    }
+
+    public FlatTagOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * names the source in the JFR event of the file, which is sent only by a parser whose source is named.
+     */
+    public void setSourceName(String sourceName) {
+        this.sourceName = sourceName;
+    }
+
+    /*
+     * the input of a parser of a record has been counted by the parser which has cut it out.
+     */
+    void setCountsInput(boolean countsInput) {
+        this.countsInput = countsInput;
+    }
+
+    /*
+     * adds the counts since the last call to the stats.
+     * The parse time is the time since the last call except for the input and the output.
+     */
+    private void publishStats() {
+        long now = System.nanoTime(), writeNanos = sink != null ? sink.getWriteNanos() : 0;
+
+        counters.bytesRead = countsInput ? offset() - sourceStart : 0;
+        counters.parseNanos += now - statsTime - (counters.inputNanos - published.inputNanos)
+                - (writeNanos - statsWriteNanos);
+        statsTime = now;
+        statsWriteNanos = writeNanos;
+        stats.add(counters, published);
+    }
+
+    private void countLine(long textLength) {
+        counters.linesEmitted++;
+        if(textLength > counters.longestText) {
+            counters.longestText = textLength;
+        }
+    }
+
+    public int getLineNo() {
+        return lineNo;
+    }
+
+    public void setLineNo(int lineNo) {
+        this.lineNo = lineNo;
+    }
+
+    /*
+     * returns the offset of the next byte from the beginning of the source.
+     */
+    private long offset() {
+        return consumed + (buffer != null ? buffer.position() : 0) - (pushback >= 0 ? 1 : 0);
+    }
+
+    private boolean fillBuffer() throws IOException {
+        while(buffer == null || !buffer.hasRemaining()) {
+            if(buffer != null) {
+                consumed += buffer.limit();
+            }
+            if(stats != null) {
+                long start = System.nanoTime();
+
+                buffer = source.next();
+                counters.inputNanos += System.nanoTime() - start;
+                publishStats();
+            } else {
+                buffer = source.next();
+            }
+            if(buffer == null) {
+                return false;
+            }
+            ByteScanner.prepare(buffer);
+        }
+        return true;
+    }
+
+    private int indexOfText(int from, int to) {
+        if(state == CDATA) {
+            return ByteScanner.indexOfTextOr(buffer, from, to, ']');
+        } else if(decodeReferences && state == INNER_TAG) {
+            return ByteScanner.indexOfTextOrReference(buffer, from, to);
+        } else {
+            return ByteScanner.indexOfText(buffer, from, to);
+        }
+    }
+
+    private void scanText(ByteBuilder builder) {
+        if(pushback < 0 && buffer != null) {
+            int position = buffer.position();
+            // a chunk of a mapped file is not copied at once more than maxText
+            int limit = buffer.limit() - position > maxText ? position + maxText : buffer.limit();
+            int end = indexOfText(position, limit);
+
+            if(selected) {
+                builder.append(buffer, position, end - position);
+            }
+            buffer.position(end);
+        }
+    }
+
+    /*
+     * the line of a text longer than maxText is written while the text is read.
+     * The text which needs no replacement is written from the buffer of the input,
+     * and builder has only the replacements and the bytes of the sequence of UTF-8 which a chunk cuts.
+     */
+    private boolean canStream() {
+        return selected && !rowMode && handler == null && records == null;
+    }
+
+    private void startStream() throws IOException {
+        streaming = true;
+        streamedLength = 0;
+        printTagStack();
+        flushText();
+    }
+
+    private void flushText() throws IOException {
+        int length = builder.completeLength();
+
+        printBytes(builder, 0, length);
+        streamedLength += length;
+        builder.removeFirst(length);
+    }
+
+    private void streamText() throws IOException {
+        if(pushback < 0 && buffer != null) {
+            int position = buffer.position();
+            int end = indexOfText(position, buffer.limit());
+
+            if(sink != null && sink.isUtf8() && position < end) {
+                int valid;
+
+                if(builder.length() > 0) {
+                    flushText();
+                }
+                if(builder.length() == 0) {
+                    valid = ByteScanner.indexOfInvalidUtf8(buffer, position, end);
+                    sink.write(buffer, position, valid - position);
+                    streamedLength += valid - position;
+                    position = valid;
+                }
+            }
+            builder.append(buffer, position, end - position);
+            buffer.position(end);
+        }
+        if(builder.length() >= maxText) {
+            flushText();
+        }
+    }
+
+    private void endStream() throws IOException {
+        streaming = false;
+        printBytes(builder, 0, builder.length());
+        printNewLine();
+        countLine(streamedLength + builder.length());
+    }
+
+    private void skipText() {
+        if(pushback < 0 && buffer != null) {
+            int position = buffer.position();
+            int end = ByteScanner.indexOf(buffer, position, buffer.limit(), '<');
+
+            lineNo += ByteScanner.countLines(buffer, position, end);
+            buffer.position(end);
+        }
+    }
+
+    private void scanComment() {
+        if(pushback < 0 && buffer != null) {
+            int position = buffer.position();
+            int end = ByteScanner.indexOf(buffer, position, buffer.limit(), '-');
+
+            lineNo += ByteScanner.countLines(buffer, position, end);
+            buffer.position(end);
+        }
+    }
+
+    private int readByte() throws IOException {
+        if(pushback >= 0) {
+            int result = pushback;
+
+            pushback = -1;
+            return result;
+        }
+        if(!fillBuffer()) {
+            return -1;
+        }
+
+        int result = buffer.get() & 0xff;
+
+        if(result == '\n') {
+            lineNo++;
+        }
+        return result;
+    }
+
+    private int readCodePoint(int lead) throws IOException {
+        int length, result;
+
+        if(lead >= 0xf0) {
+            length = 4;
+            result = lead & 0x07;
+        } else if(lead >= 0xe0) {
+            length = 3;
+            result = lead & 0x0f;
+        } else if(lead >= 0xc0) {
+            length = 2;
+            result = lead & 0x1f;
+        } else {
+            length = 1;
+            result = 0xfffd;
+        }
+
+        sequence[0] = (byte)lead;
+        for(sequenceLength = 1; sequenceLength < length; sequenceLength++) {
+            if(!fillBuffer() || (buffer.get(buffer.position()) & 0xc0) != 0x80) {
+                return 0xfffd;
+            }
+            sequence[sequenceLength] = buffer.get();
+            result = (result << 6) | (sequence[sequenceLength] & 0x3f);
+        }
+        return result;
+    }
+
+    private flattag error(String message) {
+        return new flattag(message, lineNo);
+    }
+
+    private String[] consTuple(String item1, String item2) {
+        return new String[] { item1, item2 };
+    }
+
+    private int addSymbol(int symbol) {
+        for(; knownSymbols < symbols.size(); knownSymbols++) {
+            if(knownSymbols >= openCounts.length) {
+                int[] newCounts = new int[openCounts.length * 2];
+                boolean[] newAutoClose = new boolean[openCounts.length * 2];
+                boolean[] newFields = new boolean[openCounts.length * 2];
+                byte[][] newSkipNames = new byte[openCounts.length * 2][];
+                boolean[] newRawText = new boolean[openCounts.length * 2];
+
+                System.arraycopy(openCounts, 0, newCounts, 0, openCounts.length);
+                System.arraycopy(autoCloseTags, 0, newAutoClose, 0, openCounts.length);
+                System.arraycopy(fieldTags, 0, newFields, 0, openCounts.length);
+                System.arraycopy(skipNames, 0, newSkipNames, 0, openCounts.length);
+                System.arraycopy(rawTextTags, 0, newRawText, 0, openCounts.length);
+                openCounts = newCounts;
+                autoCloseTags = newAutoClose;
+                fieldTags = newFields;
+                skipNames = newSkipNames;
+                rawTextTags = newRawText;
+            }
+
+            String name = symbols.name(knownSymbols);
+            String lower = toLowerAscii(name);
+
+            autoCloseTags[knownSymbols] = autoClose.contains(name);
+            fieldTags[knownSymbols] = fields.contains(name);
+            // -x, script and style ignore the case of ASCII letters
+            skipNames[knownSymbols] = skipTags.contains(lower) ? lower.getBytes(StandardCharsets.UTF_8) : null;
+            rawTextTags[knownSymbols] = lower.equals("script") || lower.equals("style");
+        }
+        return symbol;
+    }
+
+    private int intern(ByteBuilder tagName) {
+        return addSymbol(symbols.intern(tagName));
+    }
+
+    private int intern(String tagName) {
+        return addSymbol(symbols.intern(tagName));
+    }
+
+    private void ensurePrefix(int newLength) {
+        if(newLength > prefix.length) {
+            char[] newPrefix = new char[Math.max(newLength, prefix.length * 2)];
+
+            System.arraycopy(prefix, 0, newPrefix, 0, prefixLength);
+            prefix = newPrefix;
+            prefixView = CharBuffer.wrap(prefix);
+        }
+    }
+
+    private void appendPrefix(String aString) {
+        ensurePrefix(prefixLength + aString.length() + 1);
+        aString.getChars(0, aString.length(), prefix, prefixLength);
+        prefixLength += aString.length();
+    }
+
+    private void appendPrefix(char ch) {
+        ensurePrefix(prefixLength + 1);
+        prefix[prefixLength++] = ch;
+    }
+
+    private void appendPrefix(ByteBuilder bytes, int from, int to) {
+        ensurePrefix(prefixLength + to - from + 1);
+        prefixView.limit(prefix.length).position(prefixLength);
+        bytes.decodeTo(from, to, prefixView);
+        prefixLength = prefixView.position();
+    }
+
+    /*
+     * returns false if the lines of the element can not be selected.
+     */
+    private boolean beginTagStack(int tag) {
+        if(depth >= tagStack.length) {
+            int[] newStack = new int[tagStack.length * 2];
+            int[] newStarts = new int[tagStack.length * 2];
+            int[] newStates = new int[tagStack.length * 2 + 1];
+
+            System.arraycopy(tagStack, 0, newStack, 0, depth);
+            System.arraycopy(prefixStarts, 0, newStarts, 0, depth);
+            System.arraycopy(filterStates, 0, newStates, 0, depth + 1);
+            tagStack = newStack;
+            prefixStarts = newStarts;
+            filterStates = newStates;
+        }
+        prefixStarts[depth] = prefixLength;
+        if(filter == null) {
+            return true;
+        }
+        filterStates[depth + 1] = filter.next(filterStates[depth], tag, symbols.name(tag));
+        return !filter.isDead(filterStates[depth + 1]);
+    }
+
+    private void endTagStack(int tag) {
+        appendPrefix((char)delimiter);
+        tagStack[depth++] = tag;
+        if(depth > counters.maxDepth) {
+            counters.maxDepth = depth;
+        }
+        openCounts[tag]++;
+        pathTags = null;
+        select();
+    }
+
+    private void select() {
+        selected = !skipping && (filter == null || filter.isSelected(filterStates[depth]));
+    }
+
+    private void addTagStack(int tag, String aString) {
+        beginTagStack(tag);
+        appendPrefix(aString);
+        endTagStack(tag);
+    }
+
+    private void pushTagStack(int tag) throws IOException {
+        counters.tagsOpened++;
+        if(autoCloseTags[tag] && openCounts[tag] > 0) {
+            int before = depth;
+
+            popTagStack(tag);
+            counters.autoClosePops += before - depth;
+        }
+        if(countSymbol == tag || (countSymbol < 0 && (elementListener != null || target >= 0))) {
+            countElement();
+        }
+        if(beginTagStack(tag)) {
+            appendPrefix(symbols.name(tag));
+            if(!ignoreAttr && !attrLine) {
+                for(int i = 0; i < attrCount * 4; i += 4) {
+                    appendPrefix((char)attrPrefix);
+                    appendPrefix(attributes, attrOffsets[i], attrOffsets[i + 1]);
+                    appendPrefix((char)attrInfix);
+                    appendPrefix(attributes, attrOffsets[i + 2], attrOffsets[i + 3]);
+                }
+            }
+        }
+        endTagStack(tag);
+        if(rowMode) {
+            openRow(tag);
+        } else if(handler != null) {
+            openHandler(tag);
+        }
+    }
+
+    private void countElement() throws IOException {
+        long ordinal = elementCount++;
+
+        if(elementListener != null && ordinal % interval == 0) {
+            elementListener.onElement(ordinal, tagOffset, tagLineNo, snapshot());
+        }
+        if(ordinal == target && !stopped) {
+            skipping = false;
+            stopDepth = depth;
+            select();
+        }
+    }
+
+    private Utf8View attributeView(int index) {
+        if(index < 0 || index >= attrCount * 2) {
+            throw new IndexOutOfBoundsException();
+        } else if(index >= attributeViews.length) {
+            Utf8View[] newViews = new Utf8View[Math.max(index + 1, attributeViews.length * 2)];
+
+            System.arraycopy(attributeViews, 0, newViews, 0, attributeViews.length);
+            for(int i = attributeViews.length; i < newViews.length; i++) {
+                newViews[i] = new Utf8View();
+            }
+            attributeViews = newViews;
+        }
+        return attributeViews[index].set(attributes, attrOffsets[index * 2], attrOffsets[index * 2 + 1]);
+    }
+
+    private void openHandler(int tag) throws IOException {
+        handler.onOpen(symbols.name(tag), attributeList);
+        for(int i = 0; i < attrCount * 4; i += 4) {
+            if(filter == null || filter.isSelected(filterStates[depth], attributes, attrOffsets[i], attrOffsets[i + 1])) {
+                countLine(attrOffsets[i + 3] - attrOffsets[i + 2]);
+                handler.onAttribute(attributeView(i / 2), attributeView(i / 2 + 1));
+            }
+        }
+    }
+
+    private void clearAttributes() {
+        attributes.clear();
+        attrCount = 0;
+    }
+
+    private void setKey(ByteBuilder key) {
+        keyStart = attributes.length();
+        attributes.append(key);
+        keyEnd = attributes.length();
+    }
+
+    private void addAttribute(ByteBuilder value) {
+        int valueStart = attributes.length();
+
+        if(value != null) {
+            attributes.append(value);
+        }
+        if(attrCount * 4 >= attrOffsets.length) {
+            int[] newOffsets = new int[attrOffsets.length * 2];
+
+            System.arraycopy(attrOffsets, 0, newOffsets, 0, attrOffsets.length);
+            attrOffsets = newOffsets;
+        }
+        attrOffsets[attrCount * 4] = keyStart;
+        attrOffsets[attrCount * 4 + 1] = keyEnd;
+        attrOffsets[attrCount * 4 + 2] = valueStart;
+        attrOffsets[attrCount * 4 + 3] = attributes.length();
+        attrCount++;
+    }
+
+    private void popTagStack(int tag) throws IOException {
+        int top, before = depth;
+
+        if(tag < 0 || openCounts[tag] == 0) {
+            while(depth > 0) {
+                top = tagStack[--depth];
+                openCounts[top]--;
+                if(handler != null) {
+                    handler.onClose(symbols.name(top));
+                }
+            }
+        } else {
+            do {
+                top = tagStack[--depth];
+                openCounts[top]--;
+                if(handler != null) {
+                    handler.onClose(symbols.name(top));
+                }
+            } while(top != tag);
+        }
+        counters.tagsClosed += before - depth;
+        if(recordAncestors != null && depth < recordAncestors.size()) {
+            recordAncestors = null;
+        }
+        prefixLength = prefixStarts[depth];
+        sharedLength = Math.min(sharedLength, prefixLength);
+        pathTags = null;
+        if(depth <= stopDepth) {
+            stopped = true;
+            skipping = true;
+        }
+        select();
+        if(rowMode) {
+            closeRow();
+        }
+    }
+
+    /*
+     * a row begins at the outermost row element and a field at the outermost field element in a row.
+     * The attribute fields are the first fields of the row.
+     */
+    private void openRow(int tag) {
+        if(rowDepth == 0 && tag == rowSymbol) {
+            rowDepth = depth;
+            row.clear();
+            cells = 0;
+            for(byte[] name : attributeFields) {
+                cell.clear();
+                for(int i = 0; i < attrCount * 4; i += 4) {
+                    if(attributes.contentEquals(attrOffsets[i], attrOffsets[i + 1], name)) {
+                        cell.append(attributes, attrOffsets[i + 2], attrOffsets[i + 3]);
+                        break;
+                    }
+                }
+                addCell();
+            }
+        } else if(rowDepth > 0 && fieldDepth == 0 && fieldTags[tag]) {
+            fieldDepth = depth;
+            cell.clear();
+        }
+    }
+
+    private void closeRow() throws IOException {
+        if(fieldDepth > depth) {
+            fieldDepth = 0;
+            addCell();
+        }
+        if(rowDepth > depth) {
+            rowDepth = 0;
+            countLine(row.length());
+            if(records != null) {
+                addRecord(FlatRecord.Kind.ROW, null, row.toString());
+            } else {
+                printPath(prefixStarts[0]);
+                printBytes(row, 0, row.length());
+                printNewLine();
+            }
+        }
+    }
+
+    private boolean needsQuote(ByteBuilder text) {
+        for(int i = 0; i < text.length(); i++) {
+            int b = text.byteAt(i);
+
+            if(b == '\"' || b == '\n' || b == '\r' || text.contentEquals(i, i + delimiterBytes.length, delimiterBytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addCell() {
+        if(cells++ > 0) {
+            row.append(delimiterBytes);
+        }
+        if(!needsQuote(cell)) {
+            row.append(cell);
+            return;
+        }
+        row.append('\"');
+        for(int i = 0; i < cell.length(); i++) {
+            int b = cell.byteAt(i);
+
+            if(b == '\"') {
+                row.append('\"');
+            }
+            row.append(b);
+        }
+        row.append('\"');
+    }
+
+    private void printChars(char[] chars, int offset, int length) throws IOException {
+        if(sink != null) {
+            sink.write(chars, offset, length);
+        } else {
+            output.write(chars, offset, length);
+        }
+    }
+
+    private void printChar(int ch) throws IOException {
+        if(sink != null) {
+            sink.write(ch);
+        } else {
+            output.print((char)ch);
+        }
+    }
+
+    private void printBytes(ByteBuilder bytes, int from, int to) throws IOException {
+        if(sink != null) {
+            bytes.writeTo(sink, from, to);
+        } else {
+            bytes.writeTo(output, from, to);
+        }
+    }
+
+    private void printNewLine() throws IOException {
+        if(raw) {
+            printChar(0);
+        } else if(sink != null) {
+            sink.newLine();
+        } else {
+            output.println();
+        }
+    }
+
+    private void printTagStack() throws IOException {
+        printPath(prefixLength);
+    }
+
+    /*
+     * the compact line omits the chars of the path which the previous line has.
+     * sharedLength is the length of the path of the previous line which the current path still has,
+     * which only the pops of the stack shorten.
+     */
+    private void printPath(int length) throws IOException {
+        if(compact) {
+            int shared = Math.min(sharedLength, length), position = digits.length;
+
+            for(int n = shared; position == digits.length || n > 0; n /= 10) {
+                digits[--position] = (char)('0' + n % 10);
+            }
+            printChars(digits, position, digits.length - position);
+            printChar(delimiter);
+            printChars(prefix, shared, length - shared);
+            sharedLength = length;
+        } else {
+            printChars(prefix, 0, length);
+        }
+    }
+
+    private void addRecord(FlatRecord.Kind kind, String key, String value) {
+        if(pathTags == null) {
+            List<String[]> stack = snapshot();
+
+            pathTags = new ArrayList<String>();
+            pathLabels = new ArrayList<String>();
+            for(String[] tuple : stack) {
+                pathTags.add(tuple[0]);
+                pathLabels.add(tuple[1]);
+            }
+            pathTags = Collections.unmodifiableList(pathTags);
+            pathLabels = Collections.unmodifiableList(pathLabels);
+        }
+        records.add(new FlatRecord(pathTags, pathLabels, kind, key, value, lineNo));
+    }
+
+    private void printText(String text) throws IOException {
+        if(!selected || rowMode) {
+            return;
+        }
+        countLine(text.length());
+        if(handler != null) {
+            handler.onText(text);
+        } else if(records != null) {
+            addRecord(FlatRecord.Kind.TEXT, null, text);
+        } else if(sink != null) {
+            printTagStack();
+            sink.write(text);
+            printNewLine();
+        } else {
+            printTagStack();
+            output.print(text);
+            printNewLine();
+        }
+    }
+
+    private void printText(ByteBuilder text) throws IOException {
+        if(rowMode) {
+            if(fieldDepth > 0) {
+                cell.append(text);
+            }
+            return;
+        } else if(!selected) {
+            return;
+        } else if(streaming) {
+            endStream();
+            return;
+        }
+        countLine(text.length());
+        if(handler != null) {
+            handler.onText(textView.set(text, 0, text.length()));
+        } else if(records != null) {
+            addRecord(FlatRecord.Kind.TEXT, null, text.toString());
+        } else {
+            printTagStack();
+            printBytes(text, 0, text.length());
+            printNewLine();
+        }
+    }
+
+    private void printKeyValue() throws IOException {
+        if(rowMode || handler != null || skipping) {
+            return;
+        }
+        for(int i = 0; i < attrCount * 4; i += 4) {
+            if(filter != null && !filter.isSelected(filterStates[depth], attributes, attrOffsets[i], attrOffsets[i + 1])) {
+                continue;
+            }
+            countLine(attrOffsets[i + 3] - attrOffsets[i + 2]);
+            if(records != null) {
+                addRecord(FlatRecord.Kind.ATTRIBUTE, attributes.toString(attrOffsets[i], attrOffsets[i + 1]),
+                        attributes.toString(attrOffsets[i + 2], attrOffsets[i + 3]));
+                continue;
+            }
+            printTagStack();
+            printChar(attrPrefix);
+            printBytes(attributes, attrOffsets[i], attrOffsets[i + 1]);
+            printChar(delimiter);
+            printBytes(attributes, attrOffsets[i + 2], attrOffsets[i + 3]);
+            printNewLine();
+        }
+    }
+
+    private static final int INNER_TAG = 0;
+    private static final int TAG_OPEN_INIT = 100;
+    private static final int TAG_OPEN = 101;
+    private static final int TAG_ATTR = 200;
+    private static final int TAG_ATTR_KEY = 201;
+    private static final int TAG_ATTR_VALUE_INIT = 202;
+    private static final int TAG_ATTR_VALUE_DOUBLE = 203;
+    private static final int TAG_ATTR_VALUE_SINGLE = 204;
+    private static final int TAG_ATTR_VALUE_NOQUOTE = 205;
+    private static final int TAG_EMPTY = 206;
+    private static final int TAG_CLOSE_INIT = 300;
+    private static final int TAG_CLOSE = 301;
+    private static final int TAG_SKIP_DEFINITION = 400;
+    private static final int TAG_SKIP_BANG = 401;
+    private static final int TAG_SKIP_BANG2 = 402;
+    private static final int TAG_SKIP_DOCTYPE = 403;
+    private static final int TAG_SKIP_COMMENT = 404;
+    private static final int TAG_SKIP_COMMENT2 = 405;
+    private static final int TAG_SKIP_COMMENT3 = 406;
+    private static final int REFERENCE = 500;
+    private static final int RAW_TEXT = 600;
+    private static final int RAW_TEXT_END = 601;
+    private static final int CDATA_OPEN = 610;
+    private static final int CDATA = 611;
+    private static final int CDATA_END = 612;
+    private static final int SKIP_TEXT = 620;
+    private static final int SKIP_LT = 621;
+    private static final int SKIP_TAG = 622;
+    private static final int SKIP_QUOTE = 623;
+
+    private static final byte[] SCRIPT_END = "/script".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STYLE_END = "/style".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[][] RAW_TEXT_ENDS = { SCRIPT_END, STYLE_END };
+    private static final byte[] CDATA_START = "CDATA[".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int MAX_REFERENCE = 32;
+    private static final int NUMERIC = -2;
+    private static final int DECIMAL = -3;
+    private static final int HEX = -4;
+
+    private void appendBuilder(ByteBuilder builder, int ch) {
+        if(ch == '\n') {
+            builder.append(lfBytes);
+        } else if(ch == '\t') {
+            builder.append(tabBytes);
+        } else if(ch < 0x80) {
+            builder.append(ch);
+        } else {
+            builder.append(sequence, 0, sequenceLength);
+        }
+    }
+
+    /*
+     * a reference is read in its own state, which returns to the state of the text or the attribute value.
+     * The bytes of a reference which is not known are appended as they are and the byte after it is read again.
+     */
+    private void beginReference() {
+        referenceState = state;
+        referenceNode = CharReferences.ROOT;
+        referenceValue = 0;
+        referenceDigits = 0;
+        reference.clear();
+        reference.append('&');
+        state = REFERENCE;
+    }
+
+    private boolean nextReference(int ch) {
+        if(referenceNode == DECIMAL || referenceNode == HEX) {
+            int radix = referenceNode == HEX ? 16 : 10;
+            int digit = ch >= '0' && ch <= '9' ? ch - '0'
+                    : radix == 16 && (ch | 0x20) >= 'a' && (ch | 0x20) <= 'f' ? (ch | 0x20) - 'a' + 10 : -1;
+
+            if(digit < 0) {
+                return false;
+            }
+            referenceValue = Math.min(referenceValue * radix + digit, 0x110000);
+            referenceDigits++;
+            return true;
+        } else if(referenceNode == NUMERIC) {
+            referenceNode = ch == 'x' || ch == 'X' ? HEX : DECIMAL;
+            return referenceNode == HEX || nextReference(ch);
+        } else if(referenceNode == CharReferences.ROOT && ch == '#') {
+            referenceNode = NUMERIC;
+            return true;
+        } else {
+            referenceNode = CharReferences.next(referenceNode, ch);
+            return referenceNode >= 0;
+        }
+    }
+
+    /*
+     * returns the code point of the reference or -1 if it is not a reference.
+     * A number which is not a char is U+FFFD like HTML.
+     */
+    private int referenceCodePoint() {
+        if(referenceNode == DECIMAL || referenceNode == HEX) {
+            if(referenceDigits == 0) {
+                return -1;
+            }
+            return referenceValue == 0 || referenceValue > 0x10ffff
+                    || (referenceValue >= 0xd800 && referenceValue <= 0xdfff) ? 0xfffd : referenceValue;
+        } else if(referenceNode >= 0) {
+            return CharReferences.value(referenceNode);
+        } else {
+            return -1;
+        }
+    }
+
+    private void endReference(int ch) {
+        int codePoint = referenceCodePoint();
+
+        if(ch == ';' && codePoint >= 0) {
+            if(codePoint < 0x80) {
+                sequenceLength = 1;
+            } else if(codePoint < 0x800) {
+                sequence[0] = (byte)(0xc0 | codePoint >> 6);
+                sequenceLength = 2;
+            } else if(codePoint < 0x10000) {
+                sequence[0] = (byte)(0xe0 | codePoint >> 12);
+                sequenceLength = 3;
+            } else {
+                sequence[0] = (byte)(0xf0 | codePoint >> 18);
+                sequenceLength = 4;
+            }
+            for(int i = 1; i < sequenceLength; i++) {
+                sequence[i] = (byte)(0x80 | (codePoint >> (6 * (sequenceLength - 1 - i)) & 0x3f));
+            }
+            appendBuilder(builder, codePoint);
+        } else {
+            builder.append(reference);
+            pushback = ch;
+        }
+        state = referenceState;
+    }
+
+    private boolean isTextState(int state) {
+        return state == INNER_TAG || state == RAW_TEXT || state == CDATA;
+    }
+
+    /*
+     * returns the state after a comment or a declaration.
+     */
+    private int textState() {
+        return skipDepth > 0 ? SKIP_TEXT : INNER_TAG;
+    }
+
+    private boolean isNameStart(int ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || ch == '_' || ch == ':' || ch >= 0x80;
+    }
+
+    /*
+     * returns the state after the open tag of an element which is not empty.
+     * The content of script and style is a text up to its close tag, whose name is compared ignoring case.
+     * The elements of -x are neither pushed nor printed, and their content is skipped by searching '<' in bulk
+     * and counting the open and close tags of the same name.
+     */
+    private int openElement(int tag) throws IOException, flattag {
+        builder.clear();
+        if(skipNames[tag] != null) {
+            skipDepth = 1;
+            rawSkip = rawTextTags[tag];
+            endName = rawSkip ? rawTextEnd(tag) : skipNames[tag];
+            return SKIP_TEXT;
+        }
+        rawSkip = false;
+        pushTagAndKeyValue(tag);
+        if(rawTextTags[tag]) {
+            endTag = tag;
+            endName = rawTextEnd(tag);
+            return RAW_TEXT;
+        }
+        return enterRecord(tag, builder);
+    }
+
+    private byte[] rawTextEnd(int tag) {
+        return symbols.name(tag).equalsIgnoreCase("script") ? SCRIPT_END : STYLE_END;
+    }
+
+    private int toLower(int ch) {
+        return ch >= 'A' && ch <= 'Z' ? ch + ('a' - 'A') : ch;
+    }
+
+    private static String toLowerAscii(String name) {
+        StringBuilder result = new StringBuilder(name.length());
+
+        for(int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+
+            result.append(c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c);
+        }
+        return result.toString();
+    }
+
+    private boolean isTagState(int state) {
+        return state >= TAG_OPEN_INIT && state <= TAG_CLOSE;
+    }
+
+    private boolean isWhitespace(int ch) {
+        return Character.isWhitespace(ch);
+    }
+
+    private void pushTagAndKeyValue(int tag) throws IOException {
+        pushTagStack(tag);
+        if(attrLine) {
+            printKeyValue();
+        }
+    }
+
+    private static final int RECORD_CLOSE = 0;
+    private static final int RECORD_OPEN = 1;
+    private static final int RECORD_ANCESTOR = 2;
+    private static final int RECORD_EOF = 3;
+
+    /*
+     * reads a byte of a record. The bytes of the buffer are copied to body in bulk by flushRecord.
+     */
+    private int readRecordByte(ByteBuilder body) throws IOException {
+        if(pushback >= 0) {
+            int result = pushback;
+
+            pushback = -1;
+            body.append(result);
+            return result;
+        } else if(buffer == null || !buffer.hasRemaining()) {
+            flushRecord(body);
+            if(!fillBuffer()) {
+                return -1;
+            }
+            recordMark = buffer.position();
+        }
+        return buffer.get() & 0xff;
+    }
+
+    /*
+     * copies the bytes which have been read since the mark to body and counts the lines.
+     */
+    private void flushRecord(ByteBuilder body) {
+        if(buffer != null) {
+            int position = buffer.position();
+
+            body.append(buffer, recordMark, position - recordMark);
+            lineNo += ByteScanner.countLines(buffer, recordMark, position);
+            recordMark = position;
+        }
+    }
+
+    /*
+     * returns the number of the bytes of the record which have been read.
+     */
+    private int recordLength(ByteBuilder body) {
+        return body.length() + (buffer != null ? buffer.position() - recordMark : 0);
+    }
+
+    private int recordByteAt(ByteBuilder body, int index) {
+        return index < body.length() ? body.byteAt(index) : buffer.get(recordMark + index - body.length()) & 0xff;
+    }
+
+    /*
+     * returns the last byte of the record before the byte which has been read last which is not a whitespace.
+     */
+    private int lastNonWhitespace(ByteBuilder body) {
+        int i = recordLength(body) - 2;
+
+        while(i >= 0 && isWhitespace(recordByteAt(body, i))) {
+            i--;
+        }
+        return i >= 0 ? recordByteAt(body, i) : -1;
+    }
+
+    private int skipRecordWhitespace(ByteBuilder body) throws IOException {
+        int ch;
+
+        while((ch = readRecordByte(body)) >= 0 && isWhitespace(ch)) {}
+        return ch;
+    }
+
+    /*
+     * skips the bytes of the buffer until b, or until '>' or a quote if b is -1.
+     */
+    private void scanRecordUntil(int b) {
+        if(pushback < 0 && buffer != null) {
+            int position = buffer.position();
+
+            buffer.position(b >= 0 ? ByteScanner.indexOf(buffer, position, buffer.limit(), b)
+                    : ByteScanner.indexOfTagEnd(buffer, position, buffer.limit()));
+        }
+    }
+
+    private int readRecordUntil(ByteBuilder body, int b) throws IOException {
+        int ch;
+
+        do {
+            scanRecordUntil(b);
+        } while((ch = readRecordByte(body)) >= 0 && ch != b);
+        return ch;
+    }
+
+    /*
+     * returns the symbol of the name if an element of the name is open, or -1.
+     */
+    private int ancestorSymbol(ByteBuilder name) {
+        int symbol = symbols.lookup(name);
+
+        return symbol >= 0 && symbol < recordOpens.length && openCounts[symbol] > 0 ? symbol : -1;
+    }
+
+    /*
+     * copies the bytes of a record to body until the matching close tag.
+     * A record also ends before an open tag of the record if the record closes automatically,
+     * before a close tag of an enclosing element and at EOF.
+     * Only '<' is searched in the text and only the names of the tags are read byte by byte.
+     */
+    private int scanRecord(ByteBuilder body, ByteBuilder name) throws IOException {
+        int end;
+
+        recordMark = buffer != null ? buffer.position() : 0;
+        end = scanRecordTags(body, name);
+        flushRecord(body);
+        if(end == RECORD_OPEN || end == RECORD_ANCESTOR) {
+            body.setLength(recordTagStart);
+        }
+        return end;
+    }
+
+    private int scanRecordTags(ByteBuilder body, ByteBuilder name) throws IOException {
+        boolean recordAutoClose = autoCloseTags[recordSymbol];
+        int ch, tagStart, quote, last, brackets, matched, symbol, nesting = 0;
+        byte[] rawEnd;
+
+        // the elements of the names of the ancestors which are opened in the record
+        if(recordOpens == null || recordOpens.length < openCounts.length) {
+            recordOpens = new int[openCounts.length];
+        } else {
+            Arrays.fill(recordOpens, 0);
+        }
+        while(true) {
+            if(readRecordUntil(body, '<') < 0) {
+                return RECORD_EOF;
+            }
+            tagStart = recordLength(body) - 1;
+            name.clear();
+            if((ch = skipRecordWhitespace(body)) < 0) {
+                return RECORD_EOF;
+            } else if(ch == '/') {
+                ch = skipRecordWhitespace(body);
+                for(; ch >= 0 && ch != '>'; ch = readRecordByte(body)) {
+                    if(!isWhitespace(ch)) {
+                        name.append(ch);
+                    }
+                }
+                if(ch < 0) {
+                    return RECORD_EOF;
+                } else if(name.contentEquals(recordElement)) {
+                    if(nesting-- == 0) {
+                        return RECORD_CLOSE;
+                    }
+                } else if((symbol = ancestorSymbol(name)) >= 0) {
+                    if(recordOpens[symbol] == 0) {
+                        recordTagStart = tagStart;
+                        return RECORD_ANCESTOR;
+                    }
+                    recordOpens[symbol]--;
+                }
+            } else if(ch == '!') {
+                if((ch = readRecordByte(body)) == '[') {
+                    for(matched = 0; matched < CDATA_START.length && (ch = readRecordByte(body)) == CDATA_START[matched];) {
+                        matched++;
+                    }
+                    if(matched == CDATA_START.length) {
+                        for(last = 0; (ch = readRecordByte(body)) >= 0 && !(ch == '>' && last >= 2);) {
+                            last = ch == ']' ? last + 1 : 0;
+                            if(last == 0) {
+                                scanRecordUntil(']');
+                            }
+                        }
+                        continue;
+                    }
+                    // a declaration like <![INCLUDE[ whose mismatched byte is also counted
+                    for(brackets = ch == '>' ? 0 : ch == '<' ? 2 : 1; brackets > 0 && (ch = readRecordByte(body)) >= 0;) {
+                        if(ch == '>') {
+                            brackets--;
+                        } else if(ch == '<') {
+                            brackets++;
+                        }
+                    }
+                    continue;
+                } else if(ch == '-') {
+                    ch = readRecordByte(body);
+                }
+                if(ch == '-') {
+                    for(last = 0; (ch = readRecordByte(body)) >= 0 && !(ch == '>' && last >= 2);) {
+                        last = ch == '-' ? last + 1 : 0;
+                        if(last == 0) {
+                            scanRecordUntil('-');
+                        }
+                    }
+                } else if(ch != '>') {
+                    for(brackets = 1; brackets > 0 && (ch = readRecordByte(body)) >= 0;) {
+                        if(ch == '>') {
+                            brackets--;
+                        } else if(ch == '<') {
+                            brackets++;
+                        }
+                    }
+                }
+            } else if(ch == '?') {
+                while((ch = readRecordByte(body)) >= 0 && ch != '>') {}
+            } else {
+                for(; ch >= 0 && ch != '>' && !isWhitespace(ch); ch = readRecordByte(body)) {
+                    name.append(ch);
+                }
+                if(ch < 0) {
+                    return RECORD_EOF;
+                } else if(recordAutoClose && name.contentEquals(recordElement)) {
+                    pushback = ch;
+                    recordTagStart = tagStart;
+                    return RECORD_OPEN;
+                }
+                for(quote = 0; ch >= 0 && (quote != 0 || ch != '>'); ch = readRecordByte(body)) {
+                    if(quote != 0) {
+                        quote = ch == quote ? 0 : quote;
+                    } else if(ch == '\"' || ch == '\'') {
+                        quote = ch;
+                    }
+                    scanRecordUntil(quote != 0 ? quote : -1);
+                }
+                if(ch < 0) {
+                    return RECORD_EOF;
+                }
+                // a '/' in quotes is followed by the quote
+                if(lastNonWhitespace(body) == '/') {
+                    continue;
+                } else if((rawEnd = rawTextEnd(name)) != null) {
+                    if(scanRecordRawText(body, rawEnd) < 0) {
+                        return RECORD_EOF;
+                    }
+                } else if(name.contentEquals(recordElement)) {
+                    nesting++;
+                } else if((symbol = ancestorSymbol(name)) >= 0) {
+                    recordOpens[symbol]++;
+                }
+            }
+        }
+    }
+
+    /*
+     * returns the end marker of script or style of the name ignoring case, or null.
+     */
+    private byte[] rawTextEnd(ByteBuilder name) {
+        for(byte[] end : RAW_TEXT_ENDS) {
+            if(name.length() == end.length - 1) {
+                int i = 0;
+
+                while(i < name.length() && toLower(name.byteAt(i)) == end[i + 1]) {
+                    i++;
+                }
+                if(i == name.length()) {
+                    return end;
+                }
+            }
+        }
+        return null;
+    }
+
+    /*
+     * copies the bytes of a raw text and its close tag to body like RAW_TEXT and returns '>' or -1 at EOF.
+     */
+    private int scanRecordRawText(ByteBuilder body, byte[] end) throws IOException {
+        int ch = readRecordByte(body), matched;
+
+        while(ch >= 0) {
+            if(ch != '<') {
+                ch = readRecordUntil(body, '<');
+                continue;
+            }
+            for(matched = 0; (ch = readRecordByte(body)) >= 0 && matched < end.length && toLower(ch) == end[matched];) {
+                matched++;
+            }
+            if(matched == end.length && (isWhitespace(ch) || ch == '>')) {
+                while(ch >= 0 && ch != '>') {
+                    ch = readRecordByte(body);
+                }
+                return ch;
+            }
+        }
+        return ch;
+    }
+
+    private int enterRecord(int tag, ByteBuilder builder) throws IOException, flattag {
+        if(dispatcher == null || tag != recordSymbol) {
+            builder.clear();
+            return INNER_TAG;
+        }
+
+        List<String[]> stack;
+        ByteBuilder body = recordBody;
+        int recordLineNo = lineNo, end;
+
+        // the ancestors are shared by the sibling records
+        if(recordAncestors == null || recordAncestors.size() != depth - 1) {
+            recordAncestors = snapshot(0, depth - 1, new ArrayList<String[]>());
+        }
+        stack = new ArrayList<String[]>(depth);
+        stack.addAll(recordAncestors);
+        snapshot(depth - 1, depth, stack);
+        builder.clear();
+        body.clear();
+        end = scanRecord(body, builder);
+        if(end == RECORD_ANCESTOR) {
+            body.append('<');
+            body.append('/');
+            body.append(recordElement);
+            body.append('>');
+        }
+        dispatcher.dispatch(body.toByteArray(), stack, recordLineNo);
+        // the lines and the close tag of the record are of another parser
+        sharedLength = 0;
+        popTagStack(tag);
+        counters.tagsClosed--;
+        if(end == RECORD_OPEN) {
+            clearAttributes();
+            return TAG_OPEN;
+        } else if(end == RECORD_ANCESTOR) {
+            popTagStack(symbols.lookup(builder));
+        }
+        builder.clear();
+        return INNER_TAG;
+    }
+
+    public void parse() throws IOException, flattag {
+        FlatTagFileEvent event = new FlatTagFileEvent();
+
+        event.begin();
+        while(parseNext()) {}
+        if(sourceName != null && event.shouldCommit()) {
+            event.file = sourceName;
+            event.bytesRead = offset() - sourceStart;
+            event.linesEmitted = counters.linesEmitted;
+            event.tagsOpened = counters.tagsOpened;
+            event.maxDepth = counters.maxDepth;
+            event.longestText = counters.longestText;
+            event.commit();
+        }
+    }
+
+    /**
+     * returns the records of the document instead of writing them.
+     * The input is parsed only as far as the records are requested.
+     * Errors are thrown as UncheckedIOException or ParseException.
+     */
+    public Iterator<FlatRecord> iterator() {
+        records = new ArrayDeque<FlatRecord>();
+        return new Iterator<FlatRecord>() {
+            public boolean hasNext() {
+                try {
+                    return !records.isEmpty() || parseNext();
+                } catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch(flattag e) {
+                    throw new ParseException(e);
+                }
+            }
+
+            public FlatRecord next() {
+                if(!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return records.remove();
+            }
+        };
+    }
+
+    public Spliterator<FlatRecord> spliterator() {
+        return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    /**
+     * returns the records as a sequential stream which closes the source when it is closed.
+     */
+    public Stream<FlatRecord> stream() {
+        return StreamSupport.stream(spliterator(), false).onClose(() -> {
+            try {
+                source.close();
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private boolean finish() throws IOException {
+        if(rowMode) {
+            popTagStack(-1);
+        }
+        if(stats != null) {
+            publishStats();
+        }
+        if(handler != null) {
+            handler.onEnd();
+        }
+        if(sink != null) {
+            sink.flush();
+        } else if(output != null) {
+            output.flush();
+        }
+        finished = true;
+        return records != null && !records.isEmpty();
+    }
+
+    /*
+     * parses until records are queued in pull mode or the end of input.
+     * returns false at the end of input.
+     */
+    private boolean parseNext() throws IOException, flattag {
+        int ch;
+
+        if(finished) {
+            return false;
+        }
+        while(records == null || records.isEmpty()) {
+            if(isTextState(state)) {
+                if(stopped) {
+                    return finish();
+                } else if(checkpointListener != null && offset() >= nextCheckpoint && !streaming && state == INNER_TAG
+                        && pushback < 0) {
+                    // a pushed back newline has been counted in lineNo
+                    checkpoint();
+                }
+                if(streaming) {
+                    streamText();
+                } else {
+                    scanText(builder);
+                    if(builder.length() > maxText && canStream()) {
+                        startStream();
+                    }
+                }
+            } else if(state == SKIP_TEXT) {
+                skipText();
+            } else if(state == TAG_SKIP_COMMENT) {
+                scanComment();
+            }
+            if((ch = readByte()) < 0) {
+                if(state == REFERENCE) {
+                    builder.append(reference);
+                    state = referenceState;
+                }
+                if(isTextState(state) || skipDepth > 0) {
+                    if(builder.length() > 0 || streaming) {
+                        printText(builder);
+                    }
+                    return finish();
+                } else {
+                    throw error("unexpected EOF");
+                }
+            }
+
+            sequenceLength = 1;
+            if(ch >= 0x80) {
+                if(isTagState(state)) {
+                    ch = readCodePoint(ch);
+                } else {
+                    sequence[0] = (byte)ch;
+                }
+            }
+
+            switch(state) {
+            case INNER_TAG:
+                if(ch == '<') {
+                    if(countSymbol >= 0 || elementListener != null || target >= 0) {
+                        tagOffset = offset() - 1;
+                        tagLineNo = lineNo;
+                    }
+                    state = TAG_OPEN_INIT;
+                } else if(ch == '&' && decodeReferences && selected) {
+                    beginReference();
+                } else if(selected) {
+                    appendBuilder(builder, ch);
+                }
+                break;
+
+            case REFERENCE:
+                if(ch != ';' && reference.length() < MAX_REFERENCE && nextReference(ch)) {
+                    reference.append(ch);
+                } else {
+                    endReference(ch);
+                }
+                break;
+
+            case RAW_TEXT:
+                if(ch == '<') {
+                    marker.clear();
+                    endMatched = 0;
+                    state = RAW_TEXT_END;
+                } else if(selected) {
+                    appendBuilder(builder, ch);
+                }
+                break;
+
+            case RAW_TEXT_END:
+                if(endMatched < endName.length && toLower(ch) == endName[endMatched]) {
+                    marker.append(ch);
+                    endMatched++;
+                } else if(endMatched == endName.length && (isWhitespace(ch) || ch == '>')) {
+                    pushback = ch;
+                    if(rawSkip) {
+                        skipDepth = 0;
+                        skipOpened = false;
+                        rawSkip = false;
+                        state = SKIP_TAG;
+                    } else {
+                        // the close tag has the name of the open tag so that it is popped
+                        printText(builder);
+                        clearAttributes();
+                        builder.clear();
+                        builder.append(symbols.name(endTag).getBytes(StandardCharsets.UTF_8));
+                        state = TAG_CLOSE;
+                    }
+                } else {
+                    if(!rawSkip && selected) {
+                        builder.append('<');
+                        builder.append(marker);
+                    }
+                    pushback = ch;
+                    state = rawSkip ? SKIP_TEXT : RAW_TEXT;
+                }
+                break;
+
+            case CDATA_OPEN:
+                if(ch == CDATA_START[endMatched]) {
+                    if(++endMatched == CDATA_START.length) {
+                        state = CDATA;
+                    }
+                } else {
+                    pushback = ch;
+                    doctypeBrackets = 1;
+                    state = TAG_SKIP_DOCTYPE;
+                }
+                break;
+
+            case CDATA:
+                if(ch == ']') {
+                    endMatched = 1;
+                    state = CDATA_END;
+                } else if(selected) {
+                    appendBuilder(builder, ch);
+                }
+                break;
+
+            case CDATA_END:
+                if(ch == ']') {
+                    if(endMatched == 2 && selected) {
+                        builder.append(']');
+                    }
+                    endMatched = 2;
+                } else if(ch == '>' && endMatched == 2) {
+                    state = INNER_TAG;
+                } else {
+                    for(int i = 0; i < endMatched && selected; i++) {
+                        builder.append(']');
+                    }
+                    pushback = ch;
+                    state = CDATA;
+                }
+                break;
+
+            case SKIP_TEXT:
+                if(ch == '<') {
+                    endMatched = 0;
+                    skipClosing = false;
+                    skipOpened = false;
+                    state = rawSkip ? RAW_TEXT_END : SKIP_LT;
+                }
+                break;
+
+            case SKIP_LT:
+                if(endMatched < endName.length && toLower(ch) == (endName[endMatched] & 0xff)) {
+                    endMatched++;
+                } else if(endMatched == endName.length && (isWhitespace(ch) || ch == '>' || ch == '/')) {
+                    if(skipClosing) {
+                        skipDepth--;
+                    } else {
+                        skipDepth++;
+                        skipOpened = true;
+                    }
+                    pushback = ch;
+                    skipSlash = false;
+                    state = SKIP_TAG;
+                } else if(endMatched == 0 && !skipClosing && ch == '/') {
+                    skipClosing = true;
+                } else if(endMatched == 0 && !skipClosing && ch == '!') {
+                    state = TAG_SKIP_BANG;
+                } else if(endMatched == 0 && !skipClosing && ch == '?') {
+                    state = TAG_SKIP_DEFINITION;
+                } else if(endMatched == 0 && !skipClosing && !isNameStart(ch)) {
+                    // '<' of a text
+                    pushback = ch;
+                    state = SKIP_TEXT;
+                } else {
+                    pushback = ch;
+                    skipSlash = false;
+                    state = SKIP_TAG;
+                }
+                break;
+
+            case SKIP_TAG:
+                if(ch == '>') {
+                    if(skipOpened && skipSlash) {
+                        skipDepth--;
+                    }
+                    state = skipDepth > 0 ? SKIP_TEXT : INNER_TAG;
+                } else if(ch == '\"' || ch == '\'') {
+                    skipQuote = ch;
+                    state = SKIP_QUOTE;
+                } else if(!isWhitespace(ch)) {
+                    skipSlash = ch == '/';
+                }
+                break;
+
+            case SKIP_QUOTE:
+                if(ch == skipQuote) {
+                    skipSlash = false;
+                    state = SKIP_TAG;
+                }
+                break;
+
+            case TAG_OPEN_INIT:
+                if(ch == '>' || ch == '<' || ch == '\"' || ch == '\'') {
+                    throw error("invalid tag");
+                } else if(ch == '/') {
+                    printText(builder);
+                    clearAttributes();
+                    builder.clear();
+                    state = TAG_CLOSE_INIT;
+                } else if(ch == '?') {
+                    state = TAG_SKIP_DEFINITION;
+                } else if(ch == '!') {
+                    state = TAG_SKIP_BANG;
+                } else if(!isWhitespace(ch)) {
+                    if(builder.length() > 0 || streaming) {
+                        printText(builder);
+                    }
+                    clearAttributes();
+                    builder.clear();
+                    appendBuilder(builder, ch);
+                    state = TAG_OPEN;
+                }
+                break;
+
+            case TAG_OPEN:
+                if(ch == '>') {
+                    openTag = intern(builder);
+                    state = openElement(openTag);
+                } else if(ch == '<' || ch == '\"' || ch == '\'') {
+                    throw error("invalid tag");
+                } else if(isWhitespace(ch)) {
+                    openTag = intern(builder);
+                    state = TAG_ATTR;
+                } else {
+                    appendBuilder(builder, ch);
+                }
+                break;
+
+            case TAG_ATTR:
+                if(ch == '>') {
+                    state = openElement(openTag);
+                } else if(ch == '/') {
+                    state = TAG_EMPTY;
+                } else if(ch == '<' || ch == '\"' || ch == '\'') {
+                    throw error("invalid attribute");
+                } else if(!isWhitespace(ch)) {
+                    builder.clear();
+                    appendBuilder(builder, ch);
+                    state = TAG_ATTR_KEY;
+                }
+                break;
+
+            case TAG_ATTR_KEY:
+                if(ch == '=') {
+                    setKey(builder);
+                    builder.clear();
+                    state = TAG_ATTR_VALUE_INIT;
+                } else if(ch == '>') {
+                    setKey(builder);
+                    addAttribute(null);
+                    state = openElement(openTag);
+                } else if(ch == '<' || ch == '\"' || ch == '\'') {
+                    throw error("invalid attribute");
+                } else if(isWhitespace(ch)) {
+                    setKey(builder);
+                    addAttribute(null);
+                    state = TAG_ATTR;
+                } else {
+                    appendBuilder(builder, ch);
+                }
+                break;
+
+            case TAG_ATTR_VALUE_INIT:
+                if(ch == '\"') {
+                    state = TAG_ATTR_VALUE_DOUBLE;
+                } else if(ch == '\'') {
+                    state = TAG_ATTR_VALUE_SINGLE;
+                } else if(ch == '<' || ch == '\"' || ch == '\'') {
+                    throw error("invalid attribute");
+                } else if(isWhitespace(ch)) {
+                    addAttribute(null);
+                    state = TAG_ATTR;
+                } else {
+                    appendBuilder(builder, ch);
+                    state = TAG_ATTR_VALUE_NOQUOTE;
+                }
+                break;
+
+            case TAG_ATTR_VALUE_DOUBLE:
+                if(ch == '\"') {
+                    addAttribute(builder);
+                    state = TAG_ATTR;
+                } else if(ch == '&' && decodeReferences) {
+                    beginReference();
+                } else {
+                    appendBuilder(builder, ch);
+                }
+                break;
+
+            case TAG_ATTR_VALUE_SINGLE:
+                if(ch == '\'') {
+                    addAttribute(builder);
+                    state = TAG_ATTR;
+                } else if(ch == '&' && decodeReferences) {
+                    beginReference();
+                } else {
+                    appendBuilder(builder, ch);
+                }
+                break;
+
+            case TAG_ATTR_VALUE_NOQUOTE:
+                if(isWhitespace(ch)) {
+                    addAttribute(builder);
+                    state = TAG_ATTR;
+                } else if(ch == '<' || ch == '\"' || ch == '\'') {
+                    throw error("invalid attribute");
+                } else if(ch == '>') {
+                    state = openElement(openTag);
+                } else if(ch == '&' && decodeReferences) {
+                    beginReference();
+                } else {
+                    appendBuilder(builder, ch);
+                }
+                break;
+
+            case TAG_EMPTY:
+                if(ch == '>' && skipNames[openTag] != null) {
+                    builder.clear();
+                    state = INNER_TAG;
+                } else if(ch == '>') {
+                    pushTagAndKeyValue(openTag);
+                    printText("");
+                    popTagStack(openTag);
+                    builder.clear();
+                    state = INNER_TAG;
+                } else if(!isWhitespace(ch)) {
+                    throw error("invalid empty tag");
+                }
+                break;
+
+            case TAG_CLOSE_INIT:
+                if(ch == '>') {
+                    throw error("invalid close tag");
+                } else if(ch == '<' || ch == '\"' || ch == '\'') {
+                    throw error("invalid close tag");
+                } else if(!isWhitespace(ch)) {
+                    appendBuilder(builder, ch);
+                    state = TAG_CLOSE;
+                }
+                break;
+
+            case TAG_CLOSE:
+                if(ch == '>') {
+                    popTagStack(symbols.lookup(builder));
+                    builder.clear();
+                    state = INNER_TAG;
+                } else if(ch == '<' || ch == '\"' || ch == '\'') {
+                    throw error("invalid close tag");
+                } else if(!isWhitespace(ch)) {
+                    appendBuilder(builder, ch);
+                }
+                break;
+
+            case TAG_SKIP_DEFINITION:
+                if(ch == '>') {
+                    state = textState();
+                }
+                break;
+
+            case TAG_SKIP_BANG:
+                if(ch == '-') {
+                    state = TAG_SKIP_BANG2;
+                } else if(ch == '>') {
+                    state = textState();
+                } else if(ch == '[' && skipDepth == 0) {
+                    endMatched = 0;
+                    state = CDATA_OPEN;
+                } else {
+                    doctypeBrackets = 1;
+                    state = TAG_SKIP_DOCTYPE;
+                }
+                break;
+
+            case TAG_SKIP_BANG2:
+                if(ch == '-') {
+                    state = TAG_SKIP_COMMENT;
+                } else if(ch == '>') {
+                    state = textState();
+                } else {
+                    doctypeBrackets = 1;
+                    state = TAG_SKIP_DOCTYPE;
+                }
+                break;
+
+            case TAG_SKIP_DOCTYPE:
+                if(ch == '>' && --doctypeBrackets == 0) {
+                    state = textState();
+                } else if(ch == '<') {
+                    doctypeBrackets++;
+                }
+                break;
+
+            case TAG_SKIP_COMMENT:
+                if(ch == '-') {
+                    state = TAG_SKIP_COMMENT2;
+                }
+                break;
+
+            case TAG_SKIP_COMMENT2:
+                if(ch == '-') {
+                    state = TAG_SKIP_COMMENT3;
+                } else {
+                    state = TAG_SKIP_COMMENT;
+                }
+                break;
+
+            case TAG_SKIP_COMMENT3:
+                if(ch == '>') {
+                    state = textState();
+                } else if(ch != '-') {
+                    state = TAG_SKIP_COMMENT;
+                }
+                break;
+
+            default:
+                throw new RuntimeException("Internal error");
+            }
+        }
+        return true;
+    }
+
+}
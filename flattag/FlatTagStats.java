@@ -0,0 +1,159 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The counters of a run which the parsers of FlatTagOptions with the stats and ByteSink add to.
+ * A parser adds its counts at every chunk of the input and at the end, so they can be read while running
+ * by JMX as the MBean flattag:type=Stats.
+ * Times are the sums of all threads.
+ * The input time is of waiting for the source, the output time is of writing to the channel of a sink
+ * and the parse time is the rest of the time of the parsers.
+ */
+public class FlatTagStats implements FlatTagStatsMBean {
+
+    public static final String OBJECT_NAME = "flattag:type=Stats";
+
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder linesEmitted = new LongAdder();
+    private final LongAdder tagsOpened = new LongAdder();
+    private final LongAdder tagsClosed = new LongAdder();
+    private final LongAdder autoClosePops = new LongAdder();
+    private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator longestText = new LongAccumulator(Math::max, 0);
+    private final LongAdder inputNanos = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder outputNanos = new LongAdder();
+
+    /**
+     * the counts of one parser, which are written only by the thread of the parser.
+     */
+    static final class Counters {
+
+        long bytesRead;
+        long linesEmitted;
+        long tagsOpened;
+        long tagsClosed;
+        long autoClosePops;
+        int maxDepth;
+        long longestText;
+        long inputNanos;
+        long parseNanos;
+
+        void set(Counters other) {
+            bytesRead = other.bytesRead;
+            linesEmitted = other.linesEmitted;
+            tagsOpened = other.tagsOpened;
+            tagsClosed = other.tagsClosed;
+            autoClosePops = other.autoClosePops;
+            maxDepth = other.maxDepth;
+            longestText = other.longestText;
+            inputNanos = other.inputNanos;
+            parseNanos = other.parseNanos;
+        }
+
+    }
+
+    /*
+     * adds the counts from the published counts and updates the published counts.
+     */
+    void add(Counters counters, Counters published) {
+        bytesRead.add(counters.bytesRead - published.bytesRead);
+        linesEmitted.add(counters.linesEmitted - published.linesEmitted);
+        tagsOpened.add(counters.tagsOpened - published.tagsOpened);
+        tagsClosed.add(counters.tagsClosed - published.tagsClosed);
+        autoClosePops.add(counters.autoClosePops - published.autoClosePops);
+        maxDepth.accumulate(counters.maxDepth);
+        longestText.accumulate(counters.longestText);
+        inputNanos.add(counters.inputNanos - published.inputNanos);
+        parseNanos.add(counters.parseNanos - published.parseNanos);
+        published.set(counters);
+    }
+
+    void addOutputNanos(long nanos) {
+        outputNanos.add(nanos);
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getLinesEmitted() {
+        return linesEmitted.sum();
+    }
+
+    public long getTagsOpened() {
+        return tagsOpened.sum();
+    }
+
+    public long getTagsClosed() {
+        return tagsClosed.sum();
+    }
+
+    /**
+     * returns the number of the elements which have been closed by an open tag of -c.
+     */
+    public long getAutoClosePops() {
+        return autoClosePops.sum();
+    }
+
+    public long getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    /**
+     * returns the number of the bytes of the longest text or attribute value.
+     */
+    public long getLongestText() {
+        return longestText.get();
+    }
+
+    public long getInputMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(inputNanos.sum());
+    }
+
+    public long getParseMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(parseNanos.sum());
+    }
+
+    public long getOutputMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(outputNanos.sum());
+    }
+
+    /**
+     * registers the stats to the platform MBean server as flattag:type=Stats.
+     */
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    public void unregister() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+    }
+
+    public void report(PrintStream output) {
+        output.printf("bytes read       %d%n", getBytesRead());
+        output.printf("lines emitted    %d%n", getLinesEmitted());
+        output.printf("tags opened      %d%n", getTagsOpened());
+        output.printf("tags closed      %d%n", getTagsClosed());
+        output.printf("auto-close pops  %d%n", getAutoClosePops());
+        output.printf("max depth        %d%n", getMaxDepth());
+        output.printf("longest text     %d%n", getLongestText());
+        output.printf("input time       %d ms%n", getInputMillis());
+        output.printf("parse time       %d ms%n", getParseMillis());
+        output.printf("output time      %d ms%n", getOutputMillis());
+    }
+
+}
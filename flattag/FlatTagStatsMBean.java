@@ -0,0 +1,35 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+
+/**
+ * The counters of FlatTagStats which are read by JMX.
+ */
+public interface FlatTagStatsMBean {
+
+    long getBytesRead();
+
+    long getLinesEmitted();
+
+    long getTagsOpened();
+
+    long getTagsClosed();
+
+    long getAutoClosePops();
+
+    long getMaxDepth();
+
+    long getLongestText();
+
+    long getInputMillis();
+
+    long getParseMillis();
+
+    long getOutputMillis();
+
+}
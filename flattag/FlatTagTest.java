@@ -6,10 +6,36 @@
  * This software is released under the MIT License.
  * http\t//opensource.org/licenses/mit-license.php
  **/
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
@@ -32,6 +58,49 @@ public class FlatTagTest {
         } catch(Exception e) {
             throw new RuntimeException(e);
         }
+        assertExecBytes(file, expected);
+    }
+
+    private String execSource(ByteSource source) throws Exception {
+        StringWriter result = new StringWriter();
+
+        try {
+            flattag.lineNo = 1;
+            flattag.output = new PrintWriter(result);
+            flattag.parseTag(source);
+            flattag.output.flush();
+            return result.toString();
+        } finally {
+            source.close();
+        }
+    }
+
+    private String execSink(ByteSource source, int bufferSize) throws Exception {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ByteSink sink = new ByteSink(Channels.newChannel(result), bufferSize);
+
+        flattag.lineNo = 1;
+        flattag.parseTag(source, sink);
+        return new String(result.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void assertExecBytes(String file, String expected) {
+        byte[] bytes = file.getBytes(StandardCharsets.UTF_8);
+
+        try {
+            Path path = Files.createTempFile("flattag", ".xml");
+
+            try {
+                Files.write(path, bytes);
+                assertEquals(expected, execSource(ByteSource.map(path)));
+            } finally {
+                Files.delete(path);
+            }
+            assertEquals(expected, execSource(ByteSource.of(Channels.newChannel(new ByteArrayInputStream(bytes)), 1)));
+            assertEquals(expected, execSink(ByteSource.of(bytes), 16));
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
     }
 
     private void assertSyntaxError(String file, int lineNo, String message) {
@@ -112,6 +181,13 @@ public class FlatTagTest {
         assertSyntaxError("\n\n<", 3, "unexpected EOF");
     }
 
+    @Test
+    public void testMultibyte() {
+        assertExec("<\u8868 \u5c5e\u6027='\u5024'>\u3042\ud842\udfb7</\u8868>", "\u8868@\u5c5e\u6027=\u5024\t\u3042\ud842\udfb7\n");
+        assertExec("<span\u3000id=a\u3000/>", "span@id=a\t\n");
+        assertExec("<\u3000tr>\u3000</tr\u3000>", "tr\t\u3000\n");
+    }
+
     @Test
     public void testDefinition() {
         assertExec("<? aaaa >", "");
@@ -135,6 +211,37 @@ public class FlatTagTest {
         assertExec("<!-- \n---\n -->", "");
     }
 
+    @Test
+    public void testByteScanner() throws Exception {
+        Random random = new Random(1);
+        byte[] alphabet = "ab-<\n\t\u00e9".getBytes(StandardCharsets.UTF_8);
+
+        for(int n = 0; n < 200; n++) {
+            byte[] bytes = new byte[random.nextInt(40)];
+            ByteBuffer buffer = ByteScanner.prepare(ByteBuffer.wrap(bytes));
+            int from = bytes.length > 0 ? random.nextInt(bytes.length) : 0;
+            int text = bytes.length, dash = bytes.length, lines = 0;
+
+            for(int i = 0; i < bytes.length; i++) {
+                bytes[i] = random.nextInt(4) == 0 ? alphabet[random.nextInt(alphabet.length)] : (byte)'x';
+            }
+            for(int i = bytes.length - 1; i >= from; i--) {
+                text = bytes[i] == '<' || bytes[i] == '\n' || bytes[i] == '\t' ? i : text;
+                dash = bytes[i] == '-' ? i : dash;
+                lines += bytes[i] == '\n' ? 1 : 0;
+            }
+            assertEquals(text, ByteScanner.indexOfText(buffer, from, bytes.length));
+            assertEquals(dash, ByteScanner.indexOf(buffer, from, bytes.length, '-'));
+            assertEquals(lines, ByteScanner.countLines(buffer, from, bytes.length));
+        }
+        try {
+            new FlatTagParser(FlatTagOptions.DEFAULT, ByteSource.of("<!-- a\nb\nc -->\n<a></>".getBytes()), new StringWriter()).parse();
+            fail();
+        } catch(flattag e) {
+            assertEquals(4, e.exceptionLineNo);
+        }
+    }
+
     @Test
     public void testAttribute1() {
         assertExec("<span id=aaa class=\"bbb'\" data-a='ccc \"ccc' />", "span@id=aaa@class=bbb'@data-a=ccc \"ccc\t\n");
@@ -169,6 +276,13 @@ public class FlatTagTest {
         assertExec("<tr><td>aaa<td>bbb<tr><td>ccc<td>ddd", "tr\ttd\taaa\ntr\ttd\tbbb\ntr\ttd\tccc\ntr\ttd\tddd\n");
     }
 
+    @Test
+    public void testAutoClose2() {
+        flattag.autoClose.add("li");
+        assertExec("<ul><li>a<li>b<ul><li>c</ul><li>d</ul>", "ul\tli\ta\nul\tli\tb\nul\tli\tc\nli\td\n");
+        assertExec("<a><b>x</c>y<d>z</d>", "a\tb\tx\ny\nd\tz\n");
+    }
+
     @Test
     public void test001() {
         assertExec(
@@ -211,6 +325,893 @@ public class FlatTagTest {
             "document\t  &aaaaa \n");
     }
 
+    @Test
+    public void testParserInstance() throws Exception {
+        FlatTagOptions options = FlatTagOptions.builder().delimiter(';').attrLine(true).build();
+        StringWriter result = new StringWriter();
+
+        new FlatTagParser(options, ByteSource.of(new StringReader("<a id='1'><b>x</b></a>")), result).parse();
+        assertEquals("a;@id;1\na;b;x\na;\n", result.toString());
+        try {
+            new FlatTagParser(options, ByteSource.of(new StringReader("<a>\n\n</>")), new StringWriter()).parse();
+            fail();
+        } catch(flattag e) {
+            assertEquals(3, e.exceptionLineNo);
+        }
+    }
+
+    @Test
+    public void testPull() throws Exception {
+        FlatTagOptions options = FlatTagOptions.builder().attrLine(true).build();
+        List<FlatRecord> records = new ArrayList<FlatRecord>();
+        StringBuilder document = new StringBuilder("<a id='1'>x<b>y</b><c/>");
+        int[] chunks = new int[1];
+
+        new FlatTagParser(options, ByteSource.of("<a id='1'>x<b>y</b></a>".getBytes())).iterator().forEachRemaining(records::add);
+        assertEquals(4, records.size());
+        assertEquals(FlatRecord.Kind.ATTRIBUTE, records.get(0).getKind());
+        assertEquals("id", records.get(0).getKey());
+        assertEquals("1", records.get(0).getValue());
+        assertEquals(Arrays.asList("a", "b"), records.get(2).getTags());
+        assertEquals("a\tb\ty", records.get(2).toString());
+        assertEquals("", records.get(3).getValue());
+
+        for(int i = 0; i < 10000; i++) {
+            document.append("<b>").append(i).append("</b>\n");
+        }
+        ByteSource source = new ByteSource() {
+            private final ByteSource bytes = ByteSource.of(Channels.newChannel(
+                    new ByteArrayInputStream(document.toString().getBytes())), 16);
+
+            public ByteBuffer next() throws IOException {
+                chunks[0]++;
+                return bytes.next();
+            }
+
+            public void close() {
+            }
+        };
+        try(Stream<FlatRecord> stream = new FlatTagParser(FlatTagOptions.DEFAULT, source).stream()) {
+            List<String> values = new ArrayList<String>();
+
+            stream.filter(r -> r.getTags().contains("b")).limit(3).forEach(r -> values.add(r.getValue()));
+            assertEquals(Arrays.asList("y", "0", "1"), values);
+        }
+        assertTrue(chunks[0] < 10);
+        try {
+            new FlatTagParser(options, ByteSource.of("<a>\n</>".getBytes())).stream().count();
+            fail();
+        } catch(FlatTagParser.ParseException e) {
+            assertEquals(2, e.getCause().exceptionLineNo);
+        }
+    }
+
+    @Test
+    public void testParserConcurrent() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+
+        try {
+            for(int i = 0; i < 200; i++) {
+                final int n = i;
+
+                results.add(executor.submit(() -> {
+                    FlatTagOptions options = FlatTagOptions.builder().delimiter(n % 2 == 0 ? ';' : ',').build();
+                    StringWriter result = new StringWriter();
+                    StringBuilder file = new StringBuilder();
+
+                    for(int j = 0; j < 100; j++) {
+                        file.append("<tr><td>").append(n).append("</td></tr>");
+                    }
+                    new FlatTagParser(options, ByteSource.of(new StringReader(file.toString())), result).parse();
+                    return result.toString();
+                }));
+            }
+            for(int i = 0; i < results.size(); i++) {
+                String line = (i % 2 == 0 ? "tr;td;" : "tr,td,") + i + "\n" + (i % 2 == 0 ? "tr;\n" : "tr,\n");
+                StringBuilder expected = new StringBuilder();
+
+                for(int j = 0; j < 100; j++) {
+                    expected.append(line);
+                }
+                assertEquals(expected.toString(), results.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatchOrdered() throws Exception {
+        Path dir = Files.createTempDirectory("flattag");
+        List<String> names = new ArrayList<String>();
+        StringBuilder expected = new StringBuilder();
+
+        try {
+            for(int i = 0; i < 50; i++) {
+                Path file = dir.resolve(String.format("f%03d.xml", i));
+                StringBuilder content = new StringBuilder();
+
+                for(int j = 0; j < 2000; j++) {
+                    content.append("<r><c>").append(i).append("</c></r>");
+                    expected.append(file).append(";r;c;").append(i).append("\n").append(file).append(";r;\n");
+                }
+                Files.write(file, content.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            names.add(dir.toString());
+
+            StringWriter result = new StringWriter();
+            FlatTagOptions options = FlatTagOptions.builder().delimiter(';').build();
+
+            assertEquals(0, new FlatTagBatch(options, result, 4, true).run(FlatTagBatch.listFiles(names)));
+            assertEquals(expected.toString(), result.toString());
+        } finally {
+            for(String name : dir.toFile().list()) {
+                Files.delete(dir.resolve(name));
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private void assertFanout(FlatTagOptions options, String record, String file) {
+        StringWriter expected = new StringWriter();
+        StringWriter result = new StringWriter();
+        int expectedLineNo = -1, lineNo = -1;
+
+        try {
+            try {
+                new FlatTagParser(options, ByteSource.of(new StringReader(file)), expected).parse();
+            } catch(flattag e) {
+                expectedLineNo = e.exceptionLineNo;
+            }
+            try {
+                new FlatTagFanout(options, record, result, 3).run(ByteSource.of(new StringReader(file)));
+            } catch(flattag e) {
+                lineNo = e.exceptionLineNo;
+            }
+            assertEquals(expected.toString(), result.toString());
+            assertEquals(expectedLineNo, lineNo);
+            // records which cross the chunks of the source
+            for(int chunkSize : new int[] { 1, 7 }) {
+                StringWriter chunked = new StringWriter();
+
+                lineNo = -1;
+                try {
+                    new FlatTagFanout(options, record, chunked, 3).run(ByteSource.of(
+                            Channels.newChannel(new ByteArrayInputStream(file.getBytes(StandardCharsets.UTF_8))), chunkSize));
+                } catch(flattag e) {
+                    lineNo = e.exceptionLineNo;
+                }
+                assertEquals(expected.toString(), chunked.toString());
+                assertEquals(expectedLineNo, lineNo);
+            }
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testFanout() {
+        FlatTagOptions options = FlatTagOptions.DEFAULT;
+        FlatTagOptions autoClose = FlatTagOptions.builder().addAutoClose("tr").addAutoClose("td").build();
+        FlatTagOptions attrLine = FlatTagOptions.builder().attrLine(true).build();
+        StringBuilder large = new StringBuilder("<table>\n");
+
+        for(int i = 0; i < 20000; i++) {
+            large.append("  <tr class='r").append(i).append("'><td>").append(i).append("</td><td>x<br/>y</td></tr>\n");
+        }
+        large.append("</table>\n");
+        assertFanout(options, "tr", large.toString());
+        assertFanout(attrLine, "tr", large.toString());
+        assertFanout(options, "tr", "<table><tr><td>1</td></tr> a <tr>\n<td>2</td> b </tr></table>");
+        assertFanout(options, "tr", "<table><tr><td>1</td><tr><td>2</td></tr> c </tr> d <tr><td>3</td></table>");
+        assertFanout(options, "tr", "<table><tr><!-- </tr> --><td a='</tr>'>1</td><!DOCTYPE <x> ></tr><? </tr> ?></table>");
+        assertFanout(options, "tr", "<table><tr><td>1</td></tr><tr/><tr /><tr>2");
+        assertFanout(options, "item", "<div>\n<item><div>x</div><p>y</p></item>\n<item><div>z<div/></div></item>\n</div>\n");
+        assertFanout(options, "tr", "<table><tr><td><table><tr><td>1</td></tr></table></td></tr><tr><td>2</td></table>");
+        assertFanout(options, "tr", "<table><tr><td><script>if(a</tr>)x</SCRIPT></td><td>2</td></tr>"
+                + "<tr><td><Style>p</tr>{}</style ><![CDATA[</tr>]]]></td><![INCLUDE[<x>]]></tr><tr><td>3</td></tr></table>");
+        assertFanout(autoClose, "tr", "<table><tr><td>1<td>2\n<tr><td>3<td>4</table><tr>5");
+        assertFanout(autoClose, "tr", "<table><tr><td>1<td>2<  tr a='1'><td>3<td>4</table>");
+        assertFanout(options, "tr", "<table>\n<tr>\n<td>1</td></tr>\n<tr>\n\n<td>2</></tr><tr><td>3</td></tr></table>");
+        assertFanout(options, "tr", "<table>\n<tr>\n<td>1</td></tr>\n<tr>\n\n<td>2</td></tr><tr><td>3</td></tr></table");
+    }
+
+    private FlatTagStats stats(FlatTagOptions options, String file, String record) throws Exception {
+        FlatTagStats stats = new FlatTagStats();
+        FlatTagOptions withStats = options.toBuilder().stats(stats).build();
+        StringWriter output = new StringWriter();
+        ByteSource source = ByteSource.of(file.getBytes(StandardCharsets.UTF_8));
+
+        if(record != null) {
+            new FlatTagFanout(withStats, record, output, 4).run(source);
+        } else {
+            new FlatTagParser(withStats, source, output).parse();
+        }
+        assertEquals(output.toString().split("\n", -1).length - 1, stats.getLinesEmitted());
+        return stats;
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        FlatTagOptions autoClose = FlatTagOptions.builder().addAutoClose("tr").addAutoClose("td").build();
+        String file = "<table><tr a='xyz'><td>1<td>\u3042\u3042<tr><td>3</table>";
+        FlatTagStats stats = stats(autoClose, file, null);
+        StringBuilder large = new StringBuilder("<table>\n");
+        FlatTagStats single, fanout;
+
+        assertEquals(file.getBytes(StandardCharsets.UTF_8).length, stats.getBytesRead());
+        assertEquals(6, stats.getTagsOpened());
+        assertEquals(6, stats.getTagsClosed());
+        assertEquals(3, stats.getAutoClosePops());
+        assertEquals(3, stats.getMaxDepth());
+        assertEquals(6, stats.getLongestText());
+
+        for(int i = 0; i < 5000; i++) {
+            large.append("  <tr class='r").append(i).append("'><td>").append(i).append("</td><td>x<br/>y</td></tr>\n");
+        }
+        large.append("</table>\n");
+        single = stats(FlatTagOptions.DEFAULT, large.toString(), null);
+        fanout = stats(FlatTagOptions.DEFAULT, large.toString(), "tr");
+        assertEquals(single.getBytesRead(), fanout.getBytesRead());
+        assertEquals(single.getLinesEmitted(), fanout.getLinesEmitted());
+        assertEquals(single.getTagsOpened(), fanout.getTagsOpened());
+        assertEquals(single.getTagsClosed(), fanout.getTagsClosed());
+        assertEquals(single.getMaxDepth(), fanout.getMaxDepth());
+    }
+
+    private long allocatedBytes(FlatTagOptions options, int tags) throws Exception {
+        return allocatedBytes(options, tags, null);
+    }
+
+    private long allocatedBytes(FlatTagOptions options, int tags, FlatTagHandler handler) throws Exception {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        StringBuilder document = new StringBuilder("<table>");
+        Writer output = new Writer() {
+            public void write(char[] cbuf, int off, int len) {}
+            public void flush() {}
+            public void close() {}
+        };
+        FlatTagParser parser;
+        long start;
+
+        for(int i = 0; i < tags; i++) {
+            document.append("<tr class='c\u3042'><td id=\"x\" a>text ").append(i % 10).append("\n</td><br /></tr>");
+        }
+        document.append("</table>");
+        if(handler != null) {
+            parser = new FlatTagParser(options, ByteSource.of(document.toString().getBytes(StandardCharsets.UTF_8)), handler);
+        } else {
+            parser = new FlatTagParser(options, ByteSource.of(document.toString().getBytes(StandardCharsets.UTF_8)), output);
+        }
+        start = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        parser.parse();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+    }
+
+    @Test
+    public void testAllocation() throws Exception {
+        FlatTagOptions[] options = {
+            FlatTagOptions.DEFAULT,
+            FlatTagOptions.builder().ignoreAttr(true).build(),
+            FlatTagOptions.builder().attrLine(true).build(),
+            FlatTagOptions.builder().addAutoClose("tr").build()
+        };
+
+        for(FlatTagOptions option : options) {
+            allocatedBytes(option, 1000);
+
+            long small = allocatedBytes(option, 1000);
+            long large = allocatedBytes(option, 11000);
+
+            assertTrue("allocated " + (large - small) + " bytes", (large - small) / 10000 < 4);
+        }
+    }
+
+    @Test
+    public void testByteSink() throws Exception {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ByteSink sink = new ByteSink(Channels.newChannel(result), 16);
+        String text = "abc\u3042\ud83d\ude00\u00e9" + "0123456789abcdefghij";
+
+        sink.write(text);
+        sink.write('\u3044');
+        sink.append(new StringBuilder("xyz"), 1, 3);
+        sink.write(new char[] { 'q', '\ud83d' }, 0, 2);
+        sink.write(text.getBytes(StandardCharsets.UTF_8), 0, 3);
+        sink.flush();
+        assertEquals(text + "\u3044yzq?abc", new String(result.toByteArray(), StandardCharsets.UTF_8));
+
+        byte[] invalid = { '<', 'a', '>', 'x', (byte)0xff, 'y', (byte)0xe3, (byte)0x81, '<', '/', 'a', '>' };
+
+        assertEquals(execSource(ByteSource.of(invalid)), execSink(ByteSource.of(invalid), 16));
+
+        // a surrogate pair which is split between writes
+        for(Charset charset : Arrays.asList(StandardCharsets.UTF_8, Charset.forName("GB18030"))) {
+            ByteArrayOutputStream split = new ByteArrayOutputStream();
+
+            try(ByteSink splitSink = new ByteSink(Channels.newChannel(split), 16, charset)) {
+                splitSink.write("a\ud83d");
+                splitSink.write(new char[] { '\ude00', 'b', '\ud842' }, 0, 3);
+                splitSink.write('\udfb7');
+                splitSink.append("\ud83d");
+                splitSink.write('c');
+                splitSink.write("\ud83d");
+            }
+            assertEquals("a\ud83d\ude00b\ud842\udfb7?c?", new String(split.toByteArray(), charset));
+        }
+    }
+
+    private String execDecoded(byte[] bytes, Charset charset, int chunkSize) throws Exception {
+        return execSource(ByteSource.decode(
+                ByteSource.of(Channels.newChannel(new ByteArrayInputStream(bytes)), chunkSize), charset));
+    }
+
+    @Test
+    public void testEncoding() throws Exception {
+        Charset sjis = Charset.forName("Shift_JIS");
+        String body = "<\u8868 id='\u30bd'>\u3042\u00a7</\u8868>";
+        String expected = "\u8868@id=\u30bd\t\u3042\u00a7\n";
+        String declared = "<?xml version=\"1.0\" encoding=\"Shift_JIS\"?>" + body;
+
+        assertEquals(expected, execDecoded(declared.getBytes(sjis), null, 64));
+        assertEquals(expected, execDecoded(body.getBytes(sjis), sjis, 1));
+        assertEquals(expected, execDecoded(("\ufeff" + body).getBytes(StandardCharsets.UTF_8), null, 64));
+        assertEquals(expected, execDecoded(("\ufeff" + declared).getBytes(StandardCharsets.UTF_16LE), sjis, 64));
+        assertEquals(expected, execDecoded(declared.getBytes(StandardCharsets.UTF_16BE), null, 64));
+        assertEquals(expected, execDecoded(body.getBytes(StandardCharsets.UTF_8), null, 1));
+        assertEquals("a\t\u00e9\u00a7\n", execDecoded(new byte[] { '<', 'a', '>', (byte)0xe9, (byte)0xa7 },
+                StandardCharsets.ISO_8859_1, 3));
+        assertEquals("a\t\u20ac\n", execDecoded("<?xml encoding='windows-1252'?><a>\u20ac".getBytes("windows-1252"), null, 64));
+        assertEquals("a\tx\n", execDecoded("<?xml encoding='no-such-charset'?><a>x".getBytes(StandardCharsets.UTF_8), null, 64));
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ByteSink sink = new ByteSink(Channels.newChannel(result), 16, sjis);
+
+        flattag.lineNo = 1;
+        flattag.parseTag(ByteSource.of(body.getBytes(StandardCharsets.UTF_8)), sink);
+        assertFalse(sink.isUtf8());
+        assertEquals(expected, new String(result.toByteArray(), sjis));
+    }
+
+    @Test
+    public void testCompressed() throws Exception {
+        String file = "<table><tr><td>1</td><td>\u3042</td></tr></table>";
+        String expected = "table\ttr\ttd\t1\ntable\ttr\ttd\t\u3042\ntable\ttr\t\ntable\t\n";
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+
+        try(OutputStream output = new GZIPOutputStream(gzip)) {
+            output.write(file.getBytes(StandardCharsets.UTF_8));
+        }
+        try(ZipOutputStream output = new ZipOutputStream(zip)) {
+            output.putNextEntry(new ZipEntry("dir/"));
+            output.putNextEntry(new ZipEntry("dir/1.xml"));
+            output.write(file.substring(0, 20).getBytes(StandardCharsets.UTF_8));
+            output.putNextEntry(new ZipEntry("dir/2.xml"));
+            output.write(file.substring(20).getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(expected, execSource(ByteSource.inflate(ByteSource.of(gzip.toByteArray()))));
+        assertEquals(expected, execSource(ByteSource.inflate(ByteSource.of(Channels.newChannel(
+                new ByteArrayInputStream(zip.toByteArray())), 7))));
+        assertEquals(expected, execSource(ByteSource.inflate(ByteSource.of(file.getBytes(StandardCharsets.UTF_8)))));
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ByteSink sink = new ByteSink(new DeflatingChannel(Channels.newChannel(result)), 16);
+
+        for(int i = 0; i < 10000; i++) {
+            flattag.parseTag(ByteSource.of(file.getBytes(StandardCharsets.UTF_8)), sink);
+        }
+        sink.close();
+
+        byte[] inflated = new GZIPInputStream(new ByteArrayInputStream(result.toByteArray())).readAllBytes();
+        StringBuilder all = new StringBuilder();
+
+        for(int i = 0; i < 10000; i++) {
+            all.append(expected);
+        }
+        assertEquals(all.toString(), new String(inflated, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testPipeline() throws Exception {
+        SpscRing<Integer> ring = new SpscRing<Integer>(3);
+        Thread producer = new Thread(() -> {
+            try {
+                for(int i = 0; i < 100000; i++) {
+                    ring.put(i);
+                }
+            } catch(InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        producer.start();
+        for(int i = 0; i < 100000; i++) {
+            assertEquals(i, (int)ring.take());
+        }
+        producer.join();
+        assertNull(ring.poll());
+
+        String file = "<table><tr><td>1</td><td>\u3042</td></tr></table>";
+        String expected = "table\ttr\ttd\t1\ntable\ttr\ttd\t\u3042\ntable\ttr\t\ntable\t\n";
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ByteSink sink = new ByteSink(new WriteBehindChannel(Channels.newChannel(result)), 16);
+
+        assertEquals(expected, execSource(ByteSource.readAhead(ByteSource.of(Channels.newChannel(
+                new ByteArrayInputStream(file.getBytes(StandardCharsets.UTF_8))), 5))));
+        flattag.parseTag(ByteSource.readAhead(ByteSource.of(file.getBytes(StandardCharsets.UTF_8))), sink);
+        sink.close();
+        assertEquals(expected, new String(result.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private String flattenChunked(FlatTagOptions options, byte[] file, int chunkSize, boolean toSink) throws Exception {
+        ByteSource source = ByteSource.of(Channels.newChannel(new ByteArrayInputStream(file)), chunkSize);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StringWriter result = new StringWriter();
+
+        if(toSink) {
+            try(ByteSink sink = new ByteSink(Channels.newChannel(bytes), 64)) {
+                new FlatTagParser(options, source, sink).parse();
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+        new FlatTagParser(options, source, result).parse();
+        return result.toString();
+    }
+
+    @Test
+    public void testReferences() throws Exception {
+        FlatTagOptions decode = FlatTagOptions.builder().decodeReferences(true).build();
+        FlatTagOptions raw = decode.toBuilder().raw(true).build();
+        String file = "<a t='&lt;&amp;&#x3042;&quot;'>x &amp; y &copy;&#169;&#x1F600; &unknown; &amp &#; &#x; &#0; &#xD800;"
+                + " &lt;b&gt;&#10;&#9;&ampx;&&amp;&#65</a>";
+        String expected = "a@t=<&\u3042\"\tx & y \u00a9\u00a9\ud83d\ude00 &unknown; &amp &#; &#x; \ufffd \ufffd"
+                + " <b>  &ampx;&&&#65\n";
+
+        assertEquals(expected, flatten(decode, file));
+        assertEquals(expected, flattenChunked(decode, file.getBytes(StandardCharsets.UTF_8), 1, true));
+        assertEquals(expected, flattenChunked(decode.toBuilder().maxText(4).build(),
+                file.getBytes(StandardCharsets.UTF_8), 3, true));
+        assertEquals("a\t@t\t<&\u3042\"\na\t1 < 2\\n\n",
+                flatten(decode.toBuilder().attrLine(true).lf("\\n").build(), "<a t='&lt;&amp;&#x3042;&quot;'>1 &lt; 2&#10;</a>"));
+        assertEquals("a\t@t\t&lt;\na\t&amp;\n", flatten(FlatTagOptions.builder().attrLine(true).build(), "<a t='&lt;'>&amp;</a>"));
+        assertEquals("a\tb\tx\ny\tz\0a\t\n\0",
+                flatten(raw, "<a><b>x&#10;y&#9;z</b>\n</a>"));
+
+        assertEquals('&', CharReferences.lookup("amp"));
+        assertEquals(0x2665, CharReferences.lookup("hearts"));
+        assertEquals(0xc1, CharReferences.lookup("Aacute"));
+        assertEquals(0xe1, CharReferences.lookup("aacute"));
+        assertEquals(0xbe, CharReferences.lookup("frac34"));
+        assertEquals('\'', CharReferences.lookup("apos"));
+        assertEquals(-1, CharReferences.lookup("am"));
+        assertEquals(-1, CharReferences.lookup("ampx"));
+        assertEquals(-1, CharReferences.lookup("AMP"));
+    }
+
+    @Test
+    public void testSkip() throws Exception {
+        FlatTagOptions skip = FlatTagOptions.builder().addSkipTag("skip").addSkipTag("script").build();
+        String html = "<html><head><script>if(a<b){s=\"</div>\";}</scripts></SCRIPT ><style>p>a{}</STYLE></head>"
+                + "<p><![CDATA[x<y]]]>z</p><!DOCTYPE a [<!ENTITY b 'c'>]></html>";
+        String expected = "html\thead\tscript\tif(a<b){s=\"</div>\";}</scripts>\n"
+                + "html\thead\tstyle\tp>a{}\n"
+                + "html\thead\t\n"
+                + "html\tp\tx<y]z\n"
+                + "html\t\n";
+        String file = "<a><b>1</b><skip k='</skip>'><skip/><skip>i<b>2</b></skip><!-- </skip> -->"
+                + "<skipped>3</skipped></skip><c>4</c><skip a=\"x\"/><d>5</d><script>x</script></a>";
+
+        assertEquals(expected, flatten(FlatTagOptions.DEFAULT, html));
+        assertEquals(expected, flattenChunked(FlatTagOptions.DEFAULT, html.getBytes(StandardCharsets.UTF_8), 1, true));
+        assertEquals("a\tb\t1\na\tc\t4\na\td\t5\na\t\n", flatten(skip, file));
+        assertEquals("a\tb\t1\na\tc\t4\na\td\t5\na\t\n",
+                flattenChunked(skip, file.getBytes(StandardCharsets.UTF_8), 1, true));
+        assertEquals("html\tp\tx<y]z\nhtml\t\n",
+                flatten(skip.toBuilder().addSkipTag("head").build(), html));
+        assertEquals("body\tstyle\ty\nbody\tp\tz\nbody\t\n",
+                flatten(skip, "<body><script>x</script><style>y</style><p>z</p></body>"));
+        assertEquals("body\tp\tz\nbody\t\n",
+                flatten(skip, "<body><SCRIPT>x</Script><Skip><skip>1</SKIP></skip><p>z</p></body>"));
+    }
+
+    @Test
+    public void testStreamText() throws Exception {
+        String text = "0123456789abcdef\u3042\ud83d\ude00\u00e9\tx\ny<!-- c -->z";
+        String[] files = {
+            "<a>" + text.repeat(20) + "</a><b>" + text + "<c/>" + text.repeat(5) + "</b>",
+            "<a><b>" + "x".repeat(1000) + "</b>" + "\u3042".repeat(300) + "<c>" + text.repeat(3),
+            "<a>" + "\n".repeat(100) + "</a>"
+        };
+        FlatTagOptions[] options = {
+            FlatTagOptions.DEFAULT,
+            FlatTagOptions.builder().lf("\\n").tab("\\t").build(),
+            FlatTagOptions.builder().compact(true).build()
+        };
+        byte[] invalid = "<a>0123456789\u3042\u3042\u3042</a>".getBytes(StandardCharsets.UTF_8);
+
+        invalid[14] = (byte)0xff;
+        invalid[20] = (byte)0xc0;
+        for(FlatTagOptions option : options) {
+            for(String file : files) {
+                byte[] bytes = file.getBytes(StandardCharsets.UTF_8);
+                String expected = flattenChunked(option, bytes, 1 << 20, false);
+
+                for(int chunkSize : new int[] { 1, 7, 100 }) {
+                    for(int maxText : new int[] { 1, 8, 50 }) {
+                        FlatTagOptions streamed = option.toBuilder().maxText(maxText).build();
+
+                        assertEquals(expected, flattenChunked(streamed, bytes, chunkSize, true));
+                        assertEquals(expected, flattenChunked(streamed, bytes, chunkSize, false));
+                    }
+                }
+            }
+            assertEquals(flattenChunked(option, invalid, 1 << 20, true),
+                    flattenChunked(option.toBuilder().maxText(4).build(), invalid, 3, true));
+        }
+    }
+
+    @Test
+    public void testStreamTextMemory() throws Exception {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        FlatTagOptions options = FlatTagOptions.builder().maxText(4096).build();
+        ByteBuffer chunk = ByteBuffer.allocate(1 << 20);
+        byte[] line = "base64/\n".getBytes(StandardCharsets.UTF_8);
+        ByteSource source = new ByteSource() {
+            int count = 0;
+
+            public ByteBuffer next() {
+                if(count++ == 64) {
+                    return null;
+                }
+                chunk.clear();
+                if(count == 1) {
+                    chunk.put("<a>".getBytes(StandardCharsets.UTF_8));
+                }
+                while(chunk.position() < chunk.limit() - 8) {
+                    chunk.put(line);
+                }
+                if(count == 64) {
+                    chunk.put("</a>".getBytes(StandardCharsets.UTF_8));
+                }
+                return chunk.flip();
+            }
+
+            public void close() {
+            }
+        };
+        ByteSink sink = new ByteSink(Channels.newChannel(OutputStream.nullOutputStream()));
+        long start = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+
+        new FlatTagParser(options, source, sink).parse();
+        sink.close();
+        long allocated = bean.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+
+        assertTrue("allocated " + allocated + " bytes", allocated < (16 << 20));
+    }
+
+    private String flatten(FlatTagOptions options, String file) throws Exception {
+        StringWriter result = new StringWriter();
+
+        new FlatTagParser(options, ByteSource.of(file.getBytes(StandardCharsets.UTF_8)), result).parse();
+        return result.toString();
+    }
+
+    private String expand(String compact) throws Exception {
+        StringWriter result = new StringWriter();
+
+        new FlatTagExpander(new StringReader(compact)).transferTo(result);
+        return result.toString();
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        FlatTagOptions compact = FlatTagOptions.builder().compact(true).build();
+        String table = "<table><tr class='x'><td>1</td><td>2</td></tr><tr><td>\u3042</td></tr></table>";
+
+        assertEquals("0\ttable\t \n6\ttr@class=x\ttd\t1\n17\ttd\t2\n17\t\n6\ttr\ttd\t\u3042\n9\t\n6\t\n",
+                flatten(compact, "<table>\t<tr class='x'><td>1</td><td>2</td></tr><tr><td>\u3042</td></tr></table>"));
+
+        List<FlatTagOptions> options = Arrays.asList(
+                FlatTagOptions.DEFAULT,
+                FlatTagOptions.builder().attrLine(true).delimiter(';').build(),
+                FlatTagOptions.builder().linePrefix("file.xml\t").build(),
+                FlatTagOptions.builder().rowElement("tr").addRowField("td").addRowField("@class").build(),
+                FlatTagOptions.builder().pathFilter(PathFilter.compile("tr/td")).build());
+
+        for(FlatTagOptions option : options) {
+            for(String file : Arrays.asList(table, "<a><b><c>1</c></b><b>2<c>3</c></b>4</a><a>5</a>", "")) {
+                String flat = flatten(option, file);
+
+                assertEquals(flat, expand(flatten(option.toBuilder().compact(true).build(), file)));
+            }
+        }
+        // the prefix of the line is odd, so a surrogate pair is split at 8192 chars of transferTo
+        String astral = "<a>x" + "\ud842\udfb7".repeat(10000) + "<b>\ud83d\ude00</b></a>";
+        ByteArrayOutputStream expanded = new ByteArrayOutputStream();
+
+        try(ByteSink sink = new ByteSink(Channels.newChannel(expanded))) {
+            new FlatTagExpander(new StringReader(flatten(compact, astral))).transferTo(sink);
+        }
+        assertEquals(flatten(FlatTagOptions.DEFAULT, astral), new String(expanded.toByteArray(), StandardCharsets.UTF_8));
+
+        try {
+            expand("0\ta\tx\n4\tb\n");
+            fail();
+        } catch(IOException e) {
+            assertEquals("line 2: invalid shared length", e.getMessage());
+        }
+    }
+
+    private String query(FlatTagIndex index, Path path, long ordinal) throws Exception {
+        StringWriter result = new StringWriter();
+
+        index.query(FlatTagOptions.builder().build(), path, ordinal, result);
+        return result.toString();
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        FlatTagOptions options = FlatTagOptions.builder().build();
+        StringBuilder file = new StringBuilder("\ufeff<feed>\n");
+        Path path = Files.createTempFile("flattag", ".xml");
+        Path indexPath = Files.createTempFile("flattag", ".idx");
+
+        for(int i = 0; i < 50; i++) {
+            file.append(i % 10 == 0 ? "<group>" : "").append("<item id='").append(i).append("'><t>\u3042\n").append(i)
+                    .append("</t><p>x<b>y</b></p></item>\n").append(i % 10 == 9 ? "</group>" : "");
+        }
+        file.append("<item id='e'/></feed>");
+        try {
+            StringBuilder items = new StringBuilder();
+
+            Files.write(path, file.toString().getBytes(StandardCharsets.UTF_8));
+            FlatTagIndex.build(options, path, indexPath, "item", 1);
+            try(FlatTagIndex index = FlatTagIndex.open(indexPath)) {
+                assertEquals(51, index.getElementCount());
+                assertEquals(26, index.find(12).getLineNo());
+                for(int i = 0; i < index.getElementCount(); i++) {
+                    items.append(query(index, path, i));
+                }
+                assertEquals(flatten(options.toBuilder().pathFilter(PathFilter.compile("//item")).build(), file.toString()),
+                        items.toString());
+            }
+            FlatTagIndex.build(options, path, indexPath, null, 7);
+            try(FlatTagIndex index = FlatTagIndex.open(indexPath)) {
+                assertEquals(1 + 5 + 50 * 4 + 1, index.getElementCount());
+                assertEquals(7, index.find(10).getOrdinal());
+                assertEquals("feed\tgroup\titem@id=2\tt\t\u3042 2\n", query(index, path, 2 + 2 * 4 + 1));
+                assertEquals("feed\tgroup\titem@id=9\tp\tb\ty\n", query(index, path, 2 + 9 * 4 + 3));
+                assertEquals("feed\titem@id=e\t\n", query(index, path, index.getElementCount() - 1));
+            }
+        } finally {
+            Files.delete(path);
+            Files.delete(indexPath);
+        }
+    }
+
+    private byte[] resume(FlatTagOptions options, Path path, FlatTagCheckpoint checkpoint, byte[] output) throws Exception {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+        result.write(output, 0, (int)checkpoint.getOutputOffset());
+        try(ByteSource source = ByteSource.map(path, checkpoint.getInputOffset());
+                ByteSink sink = new ByteSink(Channels.newChannel(result), 64)) {
+            FlatTagParser parser = new FlatTagParser(options, source, sink);
+
+            parser.resume(checkpoint);
+            parser.parse();
+        }
+        return result.toByteArray();
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        FlatTagOptions options = FlatTagOptions.builder().compact(true).build();
+        StringBuilder file = new StringBuilder("<table>");
+        Path path = Files.createTempFile("flattag", ".xml");
+        Path checkpointPath = Files.createTempFile("flattag", ".ckp");
+        List<FlatTagCheckpoint> checkpoints = new ArrayList<FlatTagCheckpoint>();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        for(int i = 0; i < 200; i++) {
+            file.append("<tr class='").append(i).append("'><td>\u3042").append(i).append("\n</td><td>x</td></tr>");
+        }
+        file.append("</table>");
+        try {
+            Files.write(path, file.toString().getBytes(StandardCharsets.UTF_8));
+            try(ByteSource source = ByteSource.map(path); ByteSink sink = new ByteSink(Channels.newChannel(output), 64)) {
+                FlatTagParser parser = new FlatTagParser(options, source, sink);
+
+                parser.setCheckpointListener(100, checkpoints::add);
+                parser.parse();
+            }
+            assertEquals(flatten(options, file.toString()), output.toString("UTF-8"));
+            assertTrue(checkpoints.size() > 50);
+            for(FlatTagCheckpoint checkpoint : checkpoints) {
+                checkpoint.write(checkpointPath);
+                assertTrue(Arrays.equals(output.toByteArray(),
+                        resume(options, path, FlatTagCheckpoint.read(checkpointPath), output.toByteArray())));
+            }
+
+            // a reference which ends at a newline pushes back the newline, whose line has been counted
+            FlatTagOptions decode = FlatTagOptions.builder().decodeReferences(true).build();
+            int lineNo;
+
+            Files.write(path, ("<a>" + "<b>x&amp\ny</b>".repeat(50) + "</a>\n").getBytes(StandardCharsets.UTF_8));
+            checkpoints.clear();
+            output.reset();
+            try(ByteSource source = ByteSource.map(path); ByteSink sink = new ByteSink(Channels.newChannel(output), 64)) {
+                FlatTagParser parser = new FlatTagParser(decode, source, sink);
+
+                parser.setCheckpointListener(1, checkpoints::add);
+                parser.parse();
+                lineNo = parser.getLineNo();
+            }
+            assertTrue(checkpoints.size() > 50);
+            for(FlatTagCheckpoint checkpoint : checkpoints) {
+                try(ByteSource source = ByteSource.map(path, checkpoint.getInputOffset());
+                        ByteSink sink = new ByteSink(Channels.newChannel(new ByteArrayOutputStream()), 64)) {
+                    FlatTagParser parser = new FlatTagParser(decode, source, sink);
+
+                    parser.resume(checkpoint);
+                    parser.parse();
+                    assertEquals(lineNo, parser.getLineNo());
+                }
+                assertTrue(Arrays.equals(output.toByteArray(), resume(decode, path, checkpoint, output.toByteArray())));
+            }
+        } finally {
+            Files.delete(path);
+            Files.delete(checkpointPath);
+        }
+    }
+
+    private void waitForOutput(ByteArrayOutputStream output, String expected) throws Exception {
+        for(int i = 0; i < 200 && !output.toString("UTF-8").equals(expected); i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(expected, output.toString("UTF-8"));
+    }
+
+    @Test
+    public void testFollow() throws Exception {
+        Path path = Files.createTempFile("flattag", ".xml");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            Files.write(path, "<log>\n<e>1</e>".getBytes(StandardCharsets.UTF_8));
+            Future<?> future = executor.submit(() -> {
+                try(ByteSink sink = new ByteSink(Channels.newChannel(output));
+                        ByteSource source = ByteSource.follow(path, 0, sink)) {
+                    new FlatTagParser(FlatTagOptions.builder().build(), source, sink).parse();
+                }
+                return null;
+            });
+
+            waitForOutput(output, "log\t \nlog\te\t1\n");
+            Files.write(path, "\n<e>2".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            Files.write(path, "</e>\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            waitForOutput(output, "log\t \nlog\te\t1\nlog\t \nlog\te\t2\n");
+            future.cancel(true);
+        } finally {
+            executor.shutdownNow();
+            Files.delete(path);
+        }
+    }
+
+    private String readBinary(FlatBinaryReader reader, FlatBinaryReader.Cursor cursor, BitSet paths) throws Exception {
+        StringBuilder result = new StringBuilder();
+
+        while(paths != null ? cursor.next(paths) : cursor.next()) {
+            for(String name : reader.getPath(cursor.getPath())) {
+                result.append(name).append('\t');
+            }
+            if(cursor.getKind() == FlatBinaryWriter.ATTRIBUTE) {
+                result.append('@').append(cursor.getAttributeName()).append('\t');
+            }
+            result.append(cursor.getValue()).append('\n');
+        }
+        return result.toString();
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        FlatTagOptions options = FlatTagOptions.builder().attrLine(true).build();
+        StringBuilder file = new StringBuilder("<table>");
+        Path path = Files.createTempFile("flattag", ".bin");
+
+        for(int i = 0; i < 3000; i++) {
+            file.append("<tr id='").append(i).append("'><td>\u3042").append(i).append("</td><td/></tr>");
+        }
+        file.append("</table>x");
+        try {
+            try(ByteSink sink = new ByteSink(FileChannel.open(path, StandardOpenOption.WRITE), 1024)) {
+                new FlatTagParser(options, ByteSource.of(file.toString().getBytes(StandardCharsets.UTF_8)),
+                        new FlatBinaryWriter(options, sink)).parse();
+            }
+            try(FlatBinaryReader reader = FlatBinaryReader.open(path)) {
+                String expected = flatten(options, file.toString());
+                StringBuilder splits = new StringBuilder();
+
+                assertEquals(expected, readBinary(reader, reader.cursor(), null));
+                for(long start = 0; start < reader.getDataSize(); start += 10007) {
+                    splits.append(readBinary(reader, reader.cursor(start, start + 10007), null));
+                }
+                assertEquals(expected, splits.toString());
+                assertEquals(Arrays.asList("table", "tr", "td"), reader.getPath(3));
+                assertEquals(flatten(options.toBuilder().pathFilter(PathFilter.compile("tr/td")).build(), file.toString()),
+                        readBinary(reader, reader.cursor(), reader.findPaths(PathFilter.compile("tr/td"))));
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testHandler() throws Exception {
+        String[] documents = {
+            "<table id='t'><tr class='a'><th>H</th></tr><tr><td>1<b>x</b></td><td x='\u3042'>2</td></tr></table>",
+            "<a><b c d='1'>x</b><br/><e>\n\t</a><f>y</f>",
+            "<!DOCTYPE html><html><body><p>1<p>2</body></html>"
+        };
+        FlatTagOptions[] options = {
+            FlatTagOptions.DEFAULT,
+            FlatTagOptions.builder().ignoreAttr(true).delimiter(';').build(),
+            FlatTagOptions.builder().attrLine(true).build(),
+            FlatTagOptions.builder().addAutoClose("p").attrPrefix('%').attrInfix(':').build()
+        };
+
+        for(String document : documents) {
+            for(FlatTagOptions option : options) {
+                StringWriter expected = new StringWriter(), result = new StringWriter();
+
+                new FlatTagParser(option, ByteSource.of(document.getBytes(StandardCharsets.UTF_8)), expected).parse();
+                new FlatTagParser(option, ByteSource.of(document.getBytes(StandardCharsets.UTF_8)),
+                        new FlatTextHandler(option, result)).parse();
+                assertEquals(expected.toString(), result.toString());
+            }
+        }
+
+        FlatTagHandler counter = new FlatTagHandler() {
+            long sum;
+
+            private void add(CharSequence text) {
+                for(int i = 0; i < text.length(); i++) {
+                    sum += text.charAt(i);
+                }
+            }
+
+            public void onOpen(CharSequence name, Attributes attributes) {
+                add(name);
+                for(int i = 0; i < attributes.size(); i++) {
+                    add(attributes.getKey(i));
+                    add(attributes.getValue(i));
+                }
+            }
+
+            public void onClose(CharSequence name) {
+                add(name);
+            }
+
+            public void onText(CharSequence text) {
+                add(text);
+            }
+
+            public void onAttribute(CharSequence key, CharSequence value) {
+                add(key);
+                add(value);
+            }
+        };
+
+        allocatedBytes(FlatTagOptions.DEFAULT, 1000, counter);
+
+        long small = allocatedBytes(FlatTagOptions.DEFAULT, 1000, counter);
+        long large = allocatedBytes(FlatTagOptions.DEFAULT, 11000, counter);
+
+        assertTrue("allocated " + (large - small) + " bytes", (large - small) / 10000 < 4);
+    }
+
     @Test
     public void testOptionI() {
         assertEquals(1, flattag.parseOption("-I"));
@@ -369,6 +1370,74 @@ public class FlatTagTest {
         assertEquals("file.txt", flattag.outputFileName);
     }
 
+    @Test
+    public void testOptionj() {
+        assertEquals(3, flattag.parseOption("-j", "4", "-S"));
+        assertEquals(4, flattag.threads);
+        assertEquals(true, flattag.ordered);
+        assertEquals(-1, flattag.parseOption("-j", "x"));
+    }
+
+    @Test
+    public void testPathFilter() {
+        String document = "<table id='t'><tr class='a'><th>H</th></tr><tr><td>1<b>x</b></td><td>2</td></tr></table>";
+
+        flattag.paths.add("td");
+        assertExec(document,
+            "table@id=t\ttr\ttd\t1\n" +
+            "table@id=t\ttr\ttd\tb\tx\n" +
+            "table@id=t\ttr\ttd\t\n" +
+            "table@id=t\ttr\ttd\t2\n");
+        flattag.paths.set(0, "/tr");
+        assertExec(document, "");
+        flattag.paths.set(0, "/table/*/th");
+        flattag.paths.add("td//b");
+        assertExec(document,
+            "table@id=t\ttr@class=a\tth\tH\n" +
+            "table@id=t\ttr\ttd\tb\tx\n");
+        flattag.paths.clear();
+        flattag.paths.add("tr/@class");
+        flattag.attrLine = true;
+        assertExec(document, "table\ttr\t@class\ta\n");
+    }
+
+    @Test
+    public void testRow() {
+        String document =
+            "<table>\n" +
+            "  <tr><th>id</th><th>name</th></tr>\n" +
+            "  <tr id='r1'><td>1</td><td>KUDO, \"Shino\"</td><td>16</td></tr>\n" +
+            "  <tr><td>2</td><td>MOMOI\n<b>Azuki</b></td></tr>\n" +
+            "  <tr><td>3<td>AYASE</tr>\n" +
+            "</table>";
+
+        flattag.delimiter = ',';
+        flattag.rowElement = "tr";
+        flattag.rowFields.add("@id");
+        flattag.rowFields.add("th");
+        flattag.rowFields.add("td");
+        flattag.autoClose.add("td");
+        assertExec(document,
+            ",id,name\n" +
+            "r1,1,\"KUDO, \"\"Shino\"\"\",16\n" +
+            ",2,MOMOI Azuki\n" +
+            ",3,AYASE\n");
+        flattag.lf = "\n";
+        flattag.rowFields.remove(0);
+        assertExec("<tr><td>a\nb</td></tr><tr><td>c", "\"a\nb\"\nc\n");
+    }
+
+    @Test
+    public void testOptionp() {
+        assertEquals(4, flattag.parseOption("-p", "table/tr/td", "-p", "//@id"));
+        assertEquals(2, flattag.paths.size());
+        assertEquals(-1, flattag.parseOption("-p", "tr/@class/td"));
+        assertEquals(-1, flattag.parseOption("-p", "tr/"));
+        assertEquals(4, flattag.parseOption("-R", "tr", "-f", "@id,td,th"));
+        assertEquals("tr", flattag.rowElement);
+        assertEquals(Arrays.asList("@id", "td", "th"), flattag.rowFields);
+    }
+
     @Test
     public void testOptionUsage() {
         assertEquals(-1, flattag.parseOption("-l", "-a", "tr,td", "-o"));
@@ -0,0 +1,76 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * A handler which writes the flat text of flattag.
+ * FlatTagParser writes the same text directly when it is given a Writer.
+ */
+public class FlatTextHandler implements FlatTagHandler {
+
+    private final PrintWriter output;
+    private final char delimiter;
+    private final char attrPrefix;
+    private final char attrInfix;
+    private final boolean ignoreAttr;
+    private final boolean attrLine;
+    private final StringBuilder prefix;
+    private int[] prefixStarts;
+    private int depth;
+
+    public FlatTextHandler(FlatTagOptions options, Writer output) {
+        this.output = output instanceof PrintWriter ? (PrintWriter)output : new PrintWriter(output);
+        this.delimiter = (char)options.getDelimiter();
+        this.attrPrefix = (char)options.getAttrPrefix();
+        this.attrInfix = (char)options.getAttrInfix();
+        this.ignoreAttr = options.isIgnoreAttr();
+        this.attrLine = options.isAttrLine();
+        this.prefix = new StringBuilder(options.getLinePrefix());
+        this.prefixStarts = new int[16];
+        this.depth = 0;
+    }
+
+    public void onOpen(CharSequence name, Attributes attributes) {
+        if(depth >= prefixStarts.length) {
+            int[] newStarts = new int[prefixStarts.length * 2];
+
+            System.arraycopy(prefixStarts, 0, newStarts, 0, depth);
+            prefixStarts = newStarts;
+        }
+        prefixStarts[depth++] = prefix.length();
+        prefix.append(name);
+        if(!ignoreAttr && !attrLine) {
+            for(int i = 0; i < attributes.size(); i++) {
+                prefix.append(attrPrefix).append(attributes.getKey(i)).append(attrInfix).append(attributes.getValue(i));
+            }
+        }
+        prefix.append(delimiter);
+    }
+
+    public void onClose(CharSequence name) {
+        prefix.setLength(prefixStarts[--depth]);
+    }
+
+    public void onText(CharSequence text) {
+        output.append(prefix).append(text).println();
+    }
+
+    public void onAttribute(CharSequence key, CharSequence value) {
+        if(attrLine) {
+            output.append(prefix).append(attrPrefix).append(key).append(delimiter).append(value).println();
+        }
+    }
+
+    public void onEnd() throws IOException {
+        output.flush();
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selects the lines of elements whose path matches one of the patterns.
+ * A pattern is tag names separated by '/', or by '//' which skips any number of elements.
+ * A pattern which does not begin with '/' matches anywhere in the document.
+ * '*' matches any tag and the last step '@name' selects attribute lines of -L.
+ * The lines of a matched element and its descendants are selected.
+ */
+public final class PathFilter {
+
+    private final List<String> patterns;
+    private final List<Step> steps = new ArrayList<Step>();
+    private final BitSet start = new BitSet();
+
+    /*
+     * a state of the automaton which waits for the tag name.
+     * The accepting step follows the last step of an element pattern.
+     */
+    private static class Step {
+
+        private final String name;
+        private final boolean attribute;
+        private final boolean descendant;
+
+        Step(String name, boolean descendant) {
+            this.name = name;
+            this.attribute = name != null && name.startsWith("@");
+            this.descendant = descendant;
+        }
+
+        boolean isAccept() {
+            return name == null;
+        }
+
+        boolean matches(String tagName) {
+            return !attribute && (name.equals("*") || name.equals(tagName));
+        }
+
+    }
+
+    private PathFilter(List<String> patterns) {
+        this.patterns = Collections.unmodifiableList(new ArrayList<String>(patterns));
+        for(String pattern : patterns) {
+            addPattern(pattern);
+        }
+    }
+
+    /**
+     * compiles the patterns.
+     * @throws IllegalArgumentException if a pattern is invalid
+     */
+    public static PathFilter compile(List<String> patterns) {
+        return new PathFilter(patterns);
+    }
+
+    public static PathFilter compile(String... patterns) {
+        List<String> result = new ArrayList<String>();
+
+        Collections.addAll(result, patterns);
+        return compile(result);
+    }
+
+    public List<String> getPatterns() {
+        return patterns;
+    }
+
+    private void addPattern(String pattern) {
+        int position = 0, slash;
+        boolean skip = true;
+
+        start.set(steps.size());
+        if(pattern.startsWith("//")) {
+            position = 2;
+        } else if(pattern.startsWith("/")) {
+            position = 1;
+            skip = false;
+        }
+        while(true) {
+            slash = pattern.indexOf('/', position);
+
+            String name = pattern.substring(position, slash < 0 ? pattern.length() : slash);
+
+            if(name.isEmpty() || name.equals("@") || (slash >= 0 && name.startsWith("@"))) {
+                throw new IllegalArgumentException("invalid path pattern: " + pattern);
+            }
+            steps.add(new Step(name, skip));
+            if(slash < 0) {
+                break;
+            }
+            skip = pattern.startsWith("//", slash);
+            position = slash + (skip ? 2 : 1);
+        }
+        if(!steps.get(steps.size() - 1).attribute) {
+            steps.add(new Step(null, false));
+        }
+    }
+
+    private BitSet next(BitSet active, String tagName) {
+        BitSet result = new BitSet();
+
+        for(int i = active.nextSetBit(0); i >= 0; i = active.nextSetBit(i + 1)) {
+            Step step = steps.get(i);
+
+            if(step.isAccept()) {
+                result.set(i);
+            } else {
+                if(step.matches(tagName)) {
+                    result.set(i + 1);
+                }
+                if(step.descendant) {
+                    result.set(i);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * returns a matcher which caches the transitions of the tags of one parser.
+     * A matcher is not thread safe.
+     */
+    public Matcher matcher() {
+        return new Matcher();
+    }
+
+    public class Matcher {
+
+        private final List<State> states = new ArrayList<State>();
+        private final Map<BitSet, Integer> ids = new HashMap<BitSet, Integer>();
+
+        private Matcher() {
+            state(start);
+        }
+
+        private class State {
+
+            private final BitSet active;
+            private final boolean selected;
+            private final byte[][] attributes;
+            private int[] next = new int[16];
+
+            State(BitSet active) {
+                List<byte[]> attributeNames = new ArrayList<byte[]>();
+                boolean anyAccept = false;
+
+                for(int i = active.nextSetBit(0); i >= 0; i = active.nextSetBit(i + 1)) {
+                    Step step = steps.get(i);
+
+                    anyAccept |= step.isAccept();
+                    if(step.attribute) {
+                        attributeNames.add(step.name.substring(1).getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                this.active = active;
+                this.selected = anyAccept;
+                this.attributes = attributeNames.toArray(new byte[0][]);
+            }
+
+        }
+
+        private int state(BitSet active) {
+            Integer id = ids.get(active);
+
+            if(id == null) {
+                id = states.size();
+                states.add(new State(active));
+                ids.put(active, id);
+            }
+            return id;
+        }
+
+        public int start() {
+            return 0;
+        }
+
+        /**
+         * returns the state after the element whose tag is symbol is opened.
+         */
+        public int next(int state, int symbol, String tagName) {
+            State from = states.get(state);
+
+            if(symbol >= from.next.length) {
+                int[] newNext = new int[Math.max(symbol + 1, from.next.length * 2)];
+
+                System.arraycopy(from.next, 0, newNext, 0, from.next.length);
+                from.next = newNext;
+            }
+            if(from.next[symbol] == 0) {
+                from.next[symbol] = state(PathFilter.this.next(from.active, tagName)) + 1;
+            }
+            return from.next[symbol] - 1;
+        }
+
+        public boolean isSelected(int state) {
+            return states.get(state).selected;
+        }
+
+        /**
+         * returns true if no element in the state can be selected.
+         */
+        public boolean isDead(int state) {
+            return states.get(state).active.isEmpty();
+        }
+
+        public boolean isSelected(int state, ByteBuilder bytes, int from, int to) {
+            State current = states.get(state);
+
+            if(current.selected) {
+                return true;
+            }
+            for(byte[] name : current.attributes) {
+                if(name.length == 1 && name[0] == '*' || bytes.contentEquals(from, to, name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded ring between one producer thread and one consumer thread without locks.
+ * A blocked thread spins, yields and then parks for a short time, so the other thread needs not wake it up.
+ * The stages of flattag pass a few recycled buffers by a ring of filled buffers and a ring of free buffers.
+ */
+public final class SpscRing<T> {
+
+    private static final int SPINS = 128;
+    private static final int YIELDS = 16;
+    private static final long PARK_NANOS = 50_000;
+
+    private final Object[] items;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // the last index of the other side which each side has seen
+    private long cachedHead;
+    private long cachedTail;
+
+    /**
+     * constructs a ring which has room for at least capacity items.
+     */
+    public SpscRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+        this.items = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * adds the item if there is room, which is called only by the producer.
+     */
+    public boolean offer(T item) {
+        long index = tail.get();
+
+        if(index - cachedHead >= items.length) {
+            cachedHead = head.get();
+            if(index - cachedHead >= items.length) {
+                return false;
+            }
+        }
+        items[(int)index & mask] = item;
+        tail.lazySet(index + 1);
+        return true;
+    }
+
+    /**
+     * removes an item or returns null if the ring is empty, which is called only by the consumer.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long index = head.get();
+        T result;
+
+        if(index >= cachedTail) {
+            cachedTail = tail.get();
+            if(index >= cachedTail) {
+                return null;
+            }
+        }
+        result = (T)items[(int)index & mask];
+        items[(int)index & mask] = null;
+        head.lazySet(index + 1);
+        return result;
+    }
+
+    public void put(T item) throws InterruptedException {
+        for(int count = 0; !offer(item); count++) {
+            idle(count);
+        }
+    }
+
+    public T take() throws InterruptedException {
+        T result;
+
+        for(int count = 0; (result = poll()) == null; count++) {
+            idle(count);
+        }
+        return result;
+    }
+
+    private static void idle(int count) throws InterruptedException {
+        if(count < SPINS) {
+            Thread.onSpinWait();
+        } else if(count < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        if(Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+}
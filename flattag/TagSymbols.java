@@ -0,0 +1,98 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A table which interns tag names into integer symbols.
+ * Names are looked up by their UTF-8 bytes so that a known name is not decoded again.
+ */
+public class TagSymbols {
+
+    private int[] slots;
+    private byte[][] keys;
+    private String[] names;
+    private int size;
+
+    public TagSymbols() {
+        slots = new int[64];
+        keys = new byte[32][];
+        names = new String[32];
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String name(int symbol) {
+        return names[symbol];
+    }
+
+    private int find(ByteBuilder name, int hash) {
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+
+        while(slots[slot] != 0 && !name.contentEquals(keys[slots[slot] - 1])) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    public int lookup(ByteBuilder name) {
+        return slots[find(name, name.hash())] - 1;
+    }
+
+    public int intern(ByteBuilder name) {
+        int hash = name.hash();
+        int slot = find(name, hash);
+
+        if(slots[slot] == 0) {
+            if(size == keys.length) {
+                byte[][] newKeys = new byte[size * 2][];
+                String[] newNames = new String[size * 2];
+
+                System.arraycopy(keys, 0, newKeys, 0, size);
+                System.arraycopy(names, 0, newNames, 0, size);
+                keys = newKeys;
+                names = newNames;
+            }
+            keys[size] = name.toByteArray();
+            names[size] = name.toString();
+            slots[slot] = ++size;
+            if(size * 2 > slots.length) {
+                rehash();
+            }
+            return size - 1;
+        }
+        return slots[slot] - 1;
+    }
+
+    public int intern(String name) {
+        ByteBuilder builder = new ByteBuilder(name.length() * 3 + 1);
+
+        builder.append(name.getBytes(StandardCharsets.UTF_8));
+        return intern(builder);
+    }
+
+    private void rehash() {
+        int[] newSlots = new int[slots.length * 2];
+        int mask = newSlots.length - 1;
+
+        for(int i = 0; i < size; i++) {
+            int slot = ByteBuilder.hash(keys[i], keys[i].length) & mask;
+
+            while(newSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newSlots[slot] = i + 1;
+        }
+        slots = newSlots;
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.nio.CharBuffer;
+
+/**
+ * A reusable CharSequence over a range of UTF-8 bytes of a ByteBuilder.
+ * The bytes are decoded when the chars are first read and only if they are not ASCII.
+ * A view is valid until it is set again.
+ */
+public final class Utf8View implements CharSequence {
+
+    private ByteBuilder bytes;
+    private int from;
+    private int to;
+    private boolean decoded;
+    private boolean ascii;
+    private CharBuffer chars = CharBuffer.allocate(64);
+
+    public Utf8View set(ByteBuilder bytes, int from, int to) {
+        this.bytes = bytes;
+        this.from = from;
+        this.to = to;
+        this.decoded = false;
+        return this;
+    }
+
+    private void decode() {
+        if(decoded) {
+            return;
+        }
+        decoded = true;
+        ascii = true;
+        for(int i = from; i < to; i++) {
+            if(bytes.byteAt(i) >= 0x80) {
+                ascii = false;
+                break;
+            }
+        }
+        if(!ascii) {
+            if(chars.capacity() < to - from) {
+                chars = CharBuffer.allocate(Math.max(to - from, chars.capacity() * 2));
+            }
+            chars.clear();
+            bytes.decodeTo(from, to, chars);
+            chars.flip();
+        }
+    }
+
+    public int length() {
+        decode();
+        return ascii ? to - from : chars.limit();
+    }
+
+    public char charAt(int index) {
+        decode();
+        if(index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException();
+        }
+        return ascii ? (char)bytes.byteAt(from + index) : chars.get(index);
+    }
+
+    /**
+     * returns the number of the bytes, which does not decode them.
+     */
+    public int utf8Length() {
+        return to - from;
+    }
+
+    /**
+     * appends the bytes to target without decoding them.
+     */
+    public void appendTo(ByteBuilder target) {
+        target.append(bytes, from, to);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    public String toString() {
+        return bytes.toString(from, to);
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A channel which writes the bytes to the channel on another thread.
+ * The written bytes are copied to one of a few recycled buffers, so that the caller can reuse its buffer
+ * while the previous bytes are written.
+ * An error of the thread is thrown by the next write or close.
+ */
+public class WriteBehindChannel implements WritableByteChannel {
+
+    private static final int BUFFER_COUNT = 4;
+    protected static final int BUFFER_SIZE = 1 << 18;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final WritableByteChannel channel;
+    private final SpscRing<ByteBuffer> filled = new SpscRing<ByteBuffer>(BUFFER_COUNT + 1);
+    private final SpscRing<ByteBuffer> free = new SpscRing<ByteBuffer>(BUFFER_COUNT);
+    private final Thread thread;
+    private volatile IOException failure;
+    private boolean open;
+
+    public WriteBehindChannel(WritableByteChannel channel) {
+        this.channel = channel;
+        for(int i = 0; i < BUFFER_COUNT; i++) {
+            free.offer(ByteBuffer.allocate(BUFFER_SIZE));
+        }
+        this.open = true;
+        thread = new Thread(this::run, "flattag-writer");
+        thread.start();
+    }
+
+    /**
+     * returns the stream which the thread writes to, which is called on the thread.
+     */
+    protected OutputStream openStream(WritableByteChannel channel) throws IOException {
+        return Channels.newOutputStream(channel);
+    }
+
+    private void run() {
+        OutputStream output = null;
+        ByteBuffer buffer;
+
+        try {
+            output = openStream(channel);
+        } catch(IOException e) {
+            failure = e;
+        }
+        try {
+            while((buffer = filled.take()) != END) {
+                try {
+                    if(failure == null) {
+                        output.write(buffer.array(), 0, buffer.limit());
+                    }
+                } catch(IOException e) {
+                    // keeps taking the queue so that the writer is not blocked
+                    failure = e;
+                }
+                free.put(buffer);
+            }
+        } catch(InterruptedException e) {
+            failure = new InterruptedIOException();
+        }
+        try {
+            if(output != null) {
+                output.close();
+            } else {
+                channel.close();
+            }
+        } catch(IOException e) {
+            if(failure == null) {
+                failure = e;
+            }
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        int result = src.remaining();
+
+        if(!open) {
+            throw new ClosedChannelException();
+        }
+        try {
+            while(src.hasRemaining()) {
+                ByteBuffer buffer;
+                int length;
+
+                if(failure != null) {
+                    throw failure;
+                }
+                buffer = free.take();
+                length = Math.min(buffer.capacity(), src.remaining());
+                buffer.clear();
+                src.get(buffer.array(), 0, length);
+                buffer.limit(length);
+                filled.put(buffer);
+            }
+        } catch(InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        return result;
+    }
+
+    /**
+     * closes the channel after all bytes are written.
+     */
+    public void close() throws IOException {
+        if(!open) {
+            return;
+        }
+        open = false;
+        try {
+            filled.put(END);
+            thread.join();
+        } catch(InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if(failure != null) {
+            throw failure;
+        }
+    }
+
+}
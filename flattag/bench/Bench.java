@@ -0,0 +1,79 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * A small benchmark harness.
+ * JMH does not accept benchmarks in the default package, in which flattag lives.
+ */
+public class Bench {
+
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    public static int warmupIterations = 3;
+    public static int measurementIterations = 5;
+    public static long iterationNanos = 1000000000L;
+
+    /** if not null, results are also written here as tab separated values */
+    public static PrintStream results = null;
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        if(bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static long[] iteration(Operation operation) throws Exception {
+        long start = System.nanoTime(), allocated = allocatedBytes(), count = 0, elapsed;
+
+        do {
+            operation.run();
+            count++;
+        } while((elapsed = System.nanoTime() - start) < iterationNanos);
+        return new long[] { count, elapsed, allocatedBytes() - allocated };
+    }
+
+    public static void run(String name, long bytesPerOperation, Operation operation) throws Exception {
+        long count = 0, elapsed = 0, allocated = 0;
+
+        for(int i = 0; i < warmupIterations; i++) {
+            iteration(operation);
+        }
+        for(int i = 0; i < measurementIterations; i++) {
+            long[] result = iteration(operation);
+
+            count += result[0];
+            elapsed += result[1];
+            allocated += result[2];
+        }
+
+        double seconds = elapsed / 1e9;
+
+        System.out.printf("%-40s %14.1f ops/s %10.1f MB/s %12.1f B/op%n",
+                name,
+                count / seconds,
+                bytesPerOperation * count / seconds / 1e6,
+                (double)allocated / count);
+        if(results != null) {
+            results.printf("%s\t%.1f\t%.1f\t%.1f%n",
+                    name,
+                    count / seconds,
+                    bytesPerOperation * count / seconds / 1e6,
+                    (double)allocated / count);
+            results.flush();
+        }
+    }
+
+}
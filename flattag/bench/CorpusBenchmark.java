@@ -0,0 +1,127 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flattens generated documents of several shapes and sizes in each output mode
+ * and reports MB/s and allocated bytes per document.
+ * The documents depend only on their parameters, so results of versions can be compared.
+ *
+ * usage: java CorpusBenchmark [sizes] [profile...]
+ * sizes are comma separated like 1k,1m,1g and the default is 1k,1m,64m.
+ * -Dbench.warmup, -Dbench.iterations and -Dbench.millis change the iterations
+ * and -Dbench.results=file writes the results as tab separated values.
+ * Documents of 64 MiB or more are written to a temporary file and mapped.
+ */
+public class CorpusBenchmark {
+
+    private static final long FILE_SIZE = 64L << 20;
+
+    private static Map<String, CorpusGenerator> profiles() {
+        Map<String, CorpusGenerator> result = new LinkedHashMap<String, CorpusGenerator>();
+
+        result.put("shallow", new CorpusGenerator().depth(2).attributes(1).words(8));
+        result.put("deep", new CorpusGenerator().depth(50).attributes(1).words(2).leaves(2));
+        result.put("attributes", new CorpusGenerator().depth(5).attributes(8).words(2));
+        result.put("text", new CorpusGenerator().depth(3).attributes(0).words(64));
+        result.put("markup", new CorpusGenerator().depth(5).attributes(2).words(8).commentEvery(1).doctype(true));
+        result.put("unclosed", new CorpusGenerator().depth(3).attributes(1).words(8).unclosed(true));
+        return result;
+    }
+
+    private static Map<String, FlatTagOptions> modes() {
+        Map<String, FlatTagOptions> result = new LinkedHashMap<String, FlatTagOptions>();
+
+        result.put("default", FlatTagOptions.DEFAULT);
+        result.put("-I", FlatTagOptions.builder().ignoreAttr(true).build());
+        result.put("-L", FlatTagOptions.builder().attrLine(true).build());
+        result.put("-c", FlatTagOptions.builder().addAutoClose("li").addAutoClose("p").build());
+        return result;
+    }
+
+    private static long parseSize(String size) {
+        String lower = size.toLowerCase();
+        long unit = 1;
+
+        if(lower.endsWith("k")) {
+            unit = 1L << 10;
+        } else if(lower.endsWith("m")) {
+            unit = 1L << 20;
+        } else if(lower.endsWith("g")) {
+            unit = 1L << 30;
+        }
+        return Long.parseLong(unit > 1 ? lower.substring(0, lower.length() - 1) : lower) * unit;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> sizes = Arrays.asList((args.length > 0 ? args[0] : "1k,1m,64m").split(","));
+        List<String> names = args.length > 1 ? Arrays.asList(args).subList(1, args.length) : null;
+        PrintWriter output = new PrintWriter(new PrefixBenchmark.NullWriter());
+        String results = System.getProperty("bench.results");
+
+        Bench.warmupIterations = Integer.getInteger("bench.warmup", Bench.warmupIterations);
+        Bench.measurementIterations = Integer.getInteger("bench.iterations", Bench.measurementIterations);
+        Bench.iterationNanos = Long.getLong("bench.millis", Bench.iterationNanos / 1000000L) * 1000000L;
+        if(results != null) {
+            Bench.results = new PrintStream(new FileOutputStream(results, true), true, "UTF-8");
+            Bench.results.println("# java " + System.getProperty("java.version") + " " + System.getProperty("os.arch"));
+        }
+
+        for(Map.Entry<String, CorpusGenerator> profile : profiles().entrySet()) {
+            if(names != null && !names.contains(profile.getKey())) {
+                continue;
+            }
+            if(Bench.results != null) {
+                Bench.results.println("# " + profile.getKey() + " " + profile.getValue());
+            }
+            for(String size : sizes) {
+                long bytes = parseSize(size);
+                byte[] document = null;
+                Path file = null;
+
+                if(bytes < FILE_SIZE) {
+                    document = profile.getValue().generate(bytes);
+                } else {
+                    file = Files.createTempFile("flattag-corpus", ".xml");
+                    try(OutputStream stream = new BufferedOutputStream(Files.newOutputStream(file))) {
+                        profile.getValue().write(stream, bytes);
+                    }
+                }
+                try {
+                    final byte[] content = document;
+                    final Path path = file;
+                    long length = content != null ? content.length : Files.size(path);
+
+                    for(Map.Entry<String, FlatTagOptions> mode : modes().entrySet()) {
+                        Bench.run(profile.getKey() + " " + size + " " + mode.getKey(), length, () -> {
+                            try(ByteSource source = content != null ? ByteSource.of(content) : ByteSource.map(path)) {
+                                new FlatTagParser(mode.getValue(), source, output).parse();
+                            }
+                        });
+                    }
+                } finally {
+                    if(file != null) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+    }
+
+}
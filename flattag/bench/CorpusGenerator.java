@@ -0,0 +1,170 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates the same tagged document for the same parameters and size.
+ * The document is a root element with records, each of which nests depth elements
+ * with the given number of attributes and ends in leaves of text.
+ */
+public class CorpusGenerator {
+
+    private static final String[] TAGS = { "div", "section", "table", "tr", "td", "ul", "span", "a", "b", "em" };
+    private static final String[] WORDS = {
+        "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit",
+        "sed", "do", "eiusmod", "tempor", "incididunt", "labore", "magna", "\u3042\u3044\u3046"
+    };
+
+    private int depth = 5;
+    private int attributes = 2;
+    private int leaves = 4;
+    private int words = 8;
+    private int commentEvery = 0;
+    private boolean doctype = false;
+    private boolean unclosed = false;
+    private long seed = 1;
+
+    public CorpusGenerator depth(int depth) {
+        this.depth = depth;
+        return this;
+    }
+
+    public CorpusGenerator attributes(int attributes) {
+        this.attributes = attributes;
+        return this;
+    }
+
+    public CorpusGenerator leaves(int leaves) {
+        this.leaves = leaves;
+        return this;
+    }
+
+    /**
+     * the number of words of each text. 0 makes a document without text.
+     */
+    public CorpusGenerator words(int words) {
+        this.words = words;
+        return this;
+    }
+
+    /**
+     * a comment is put after every n records. 0 puts no comment.
+     */
+    public CorpusGenerator commentEvery(int commentEvery) {
+        this.commentEvery = commentEvery;
+        return this;
+    }
+
+    public CorpusGenerator doctype(boolean doctype) {
+        this.doctype = doctype;
+        return this;
+    }
+
+    /**
+     * leaves are li elements without close tag, which need -c li.
+     */
+    public CorpusGenerator unclosed(boolean unclosed) {
+        this.unclosed = unclosed;
+        return this;
+    }
+
+    public CorpusGenerator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public String toString() {
+        return "depth=" + depth + ",attrs=" + attributes + ",words=" + words
+                + ",comment=" + commentEvery + (doctype ? ",doctype" : "") + (unclosed ? ",unclosed" : "");
+    }
+
+    public byte[] generate(long size) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream((int)size + 4096);
+
+        write(result, size);
+        return result.toByteArray();
+    }
+
+    /**
+     * writes records until at least size bytes are written.
+     */
+    public long write(OutputStream output, long size) throws IOException {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        long written = 0;
+
+        if(doctype) {
+            text.append("<!DOCTYPE html PUBLIC \"-//W3C//DTD HTML 4.01//EN\" \"http://www.w3.org/TR/html4/strict.dtd\">\n");
+        }
+        text.append("<root>\n");
+        for(long record = 0; written + text.length() < size; record++) {
+            appendRecord(text, random, record);
+            if(commentEvery > 0 && record % commentEvery == 0) {
+                text.append("<!-- record ").append(record).append(" -- <b>not a tag</b> -->\n");
+            }
+            if(text.length() >= 65536) {
+                written += flush(output, text);
+            }
+        }
+        text.append("</root>\n");
+        written += flush(output, text);
+        output.flush();
+        return written;
+    }
+
+    private static long flush(OutputStream output, StringBuilder text) throws IOException {
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        output.write(bytes);
+        text.setLength(0);
+        return bytes.length;
+    }
+
+    private void appendRecord(StringBuilder text, Random random, long record) {
+        for(int level = 0; level < depth; level++) {
+            text.append('<').append(TAGS[level % TAGS.length]);
+            appendAttributes(text, random, record);
+            text.append('>');
+            appendWords(text, random, words / 4);
+        }
+        for(int i = 0; i < leaves; i++) {
+            text.append(unclosed ? "\n<li" : "\n<p");
+            appendAttributes(text, random, i);
+            text.append('>');
+            appendWords(text, random, words);
+            if(!unclosed) {
+                text.append("</p>");
+            }
+        }
+        for(int level = depth - 1; level >= 0; level--) {
+            text.append("</").append(TAGS[level % TAGS.length]).append('>');
+        }
+        text.append('\n');
+    }
+
+    private void appendAttributes(StringBuilder text, Random random, long n) {
+        for(int i = 0; i < attributes; i++) {
+            text.append(" a").append(i).append("=\"").append(WORDS[random.nextInt(WORDS.length)]).append(n).append('"');
+        }
+    }
+
+    private void appendWords(StringBuilder text, Random random, int count) {
+        for(int i = 0; i < count; i++) {
+            if(i > 0) {
+                text.append(i % 7 == 6 ? '\n' : ' ');
+            }
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+    }
+
+}
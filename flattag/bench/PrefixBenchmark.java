@@ -0,0 +1,86 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+
+/**
+ * Compares printing the path of each line from the precomputed prefix
+ * with walking the tag stack for every line at depths 5, 50 and 500.
+ */
+public class PrefixBenchmark {
+
+    private static final int LINES = 1000;
+
+    static class NullWriter extends Writer {
+
+        private long count;
+
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        public void write(String str, int off, int len) {
+            count += len;
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+
+    }
+
+    public static void main(String[] args) throws Exception {
+        PrintWriter output = new PrintWriter(new NullWriter());
+
+        for(int depth : new int[] { 5, 50, 500 }) {
+            StringBuilder builder = new StringBuilder();
+            StringBuilder path = new StringBuilder();
+            LinkedList<String[]> tagStack = new LinkedList<String[]>();
+
+            for(int i = 0; i < depth; i++) {
+                builder.append("<e").append(i).append(" id='").append(i).append("'>");
+                tagStack.addLast(new String[] { "e" + i, "e" + i + "@id=" + i });
+                path.append("e").append(i).append("@id=").append(i).append('\t');
+            }
+            for(int i = 0; i < LINES; i++) {
+                builder.append("text").append(i).append("<br/>");
+            }
+            for(int i = depth - 1; i >= 0; i--) {
+                builder.append("</e").append(i).append(">");
+            }
+
+            byte[] document = builder.toString().getBytes(StandardCharsets.UTF_8);
+            char[] prefix = path.toString().toCharArray();
+
+            Bench.run("flatten depth=" + depth, document.length, () -> {
+                new FlatTagParser(FlatTagOptions.DEFAULT, ByteSource.of(document), output).parse();
+            });
+            Bench.run("printByStackWalk depth=" + depth, 0, () -> {
+                for(int i = 0; i < LINES; i++) {
+                    for(String[] tuple : tagStack) {
+                        output.print(tuple[1]);
+                        output.print('\t');
+                    }
+                    output.println("text");
+                }
+            });
+            Bench.run("printByPrefix depth=" + depth, 0, () -> {
+                for(int i = 0; i < LINES; i++) {
+                    output.write(prefix, 0, prefix.length);
+                    output.println("text");
+                }
+            });
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * flattag
+ *
+ * Copyright (c) 2022 Yuichiro MORIGUCHI
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ **/
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares searching text and comments of text-heavy HTML a word at a time
+ * with the byte at a time loop, and measures flattening the same document.
+ */
+public class ScanBenchmark {
+
+    private static int scalarIndexOfText(ByteBuffer buffer, int from, int to) {
+        for(int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+
+            if(b == '<' || b == '\n' || b == '\t') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static int scalarIndexOf(ByteBuffer buffer, int from, int to, int b) {
+        for(int i = from; i < to; i++) {
+            if(buffer.get(i) == (byte)b) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    public static void main(String[] args) throws Exception {
+        PrintWriter output = new PrintWriter(new PrefixBenchmark.NullWriter());
+        StringBuilder builder = new StringBuilder("<html><body>");
+
+        for(int i = 0; i < 2000; i++) {
+            builder.append("<p class='text'>Lorem ipsum dolor sit amet, consectetur adipiscing elit, ")
+                    .append("sed do eiusmod tempor incididunt ut labore et dolore magna aliqua. ")
+                    .append(i).append("</p>\n");
+            if(i % 10 == 0) {
+                builder.append("<!-- Ut enim ad minim veniam, quis nostrud exercitation ullamco laboris ")
+                        .append("nisi ut aliquip ex ea commodo consequat. -->\n");
+            }
+        }
+        builder.append("</body></html>\n");
+
+        byte[] document = builder.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteScanner.prepare(ByteBuffer.wrap(document));
+        ByteBuffer direct = ByteScanner.prepare(ByteBuffer.allocateDirect(document.length).put(document));
+        int[] sink = new int[1];
+
+        for(ByteBuffer target : new ByteBuffer[] { buffer, direct }) {
+            String kind = target.isDirect() ? " direct" : " heap";
+
+            Bench.run("scalar text" + kind, document.length, () -> {
+                for(int i = 0; i < document.length; i = scalarIndexOfText(target, i + 1, document.length)) {
+                    sink[0]++;
+                }
+            });
+            Bench.run("swar text" + kind, document.length, () -> {
+                for(int i = 0; i < document.length; i = ByteScanner.indexOfText(target, i + 1, document.length)) {
+                    sink[0]++;
+                }
+            });
+            Bench.run("scalar comment" + kind, document.length, () -> {
+                for(int i = 0; i < document.length; i = scalarIndexOf(target, i + 1, document.length, '-')) {
+                    sink[0]++;
+                }
+            });
+            Bench.run("swar comment" + kind, document.length, () -> {
+                for(int i = 0; i < document.length; i = ByteScanner.indexOf(target, i + 1, document.length, '-')) {
+                    sink[0]++;
+                }
+            });
+        }
+        Bench.run("flatten text-heavy", document.length, () -> {
+            new FlatTagParser(FlatTagOptions.DEFAULT, ByteSource.of(document), output).parse();
+        });
+    }
+
+}
@@ -6,22 +6,38 @@
  * This software is released under the MIT License.
  * http://opensource.org/licenses/mit-license.php
  **/
-import java.io.BufferedReader;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStreamReader;
+import java.io.Flushable;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.List;
+import javax.management.JMException;
 
 public class flattag extends Exception {
 
     public int exceptionLineNo;
 
     public flattag(String message) {
+        this(message, lineNo);
+    }
+
+    public flattag(String message, int lineNo) {
         super(message);
         exceptionLineNo = lineNo;
     }
@@ -43,396 +59,99 @@ public class flattag extends Exception {
     public static boolean ignoreAttr;
     public static boolean attrLine;
     public static HashSet<String> autoClose;
+    public static HashSet<String> skipTags;
     public static String outputFileName;
+    public static int threads;
+    public static boolean ordered;
+    public static String recordElement;
+    public static List<String> paths;
+    public static String rowElement;
+    public static List<String> rowFields;
+    public static int bufferSize;
+    public static int maxText;
+    public static boolean decodeReferences;
+    public static boolean raw;
+    public static Charset inputCharset;
+    public static Charset outputCharset;
+    public static boolean compress;
+    public static boolean pipeline;
+    public static boolean compact;
+    public static boolean expand;
+    public static boolean binary;
+    public static String indexFileName;
+    public static int indexInterval;
+    public static long queryElement;
+    public static String checkpointFileName;
+    public static boolean follow;
+    public static FlatTagStats stats;
+    public static String inputName;
 
-    private static LinkedList<String[]> tagStack;
     public static int lineNo;
 
-    private static int readChar() throws IOException {
-        int result = input.read();
-
-        if(result == '\n') {
-            lineNo++;
-        }
-        return result;
-    }
-
-    private static String[] consTuple(String item1, String item2) {
-        return new String[] { item1, item2 };
-    }
-
-    private static boolean containsTag(String tagName) {
-        for(String[] tuple : tagStack) {
-            if(tuple[0].equals(tagName)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private static void pushTagStack(String tagName, String aString) {
-        if(autoClose.contains(tagName) && containsTag(tagName)) {
-            popTagStack(tagName);
-        }
-        tagStack.addLast(consTuple(tagName, aString));
-    }
-
-    private static void pushTagStack(String tagName) {
-        pushTagStack(tagName, tagName);
-    }
-
-    private static void popTagStack(String aString) {
-        while(!tagStack.isEmpty() && !tagStack.removeLast()[0].equals(aString)) {}
-    }
-
-    private static void printTagStack() {
-        for(String[] tuple : tagStack) {
-            output.print(tuple[1]);
-            output.print((char)delimiter);
-        }
-    }
-
-    private static void printText(String text) {
-        printTagStack();
-        output.println(text);
-    }
-
-    private static void printKeyValue(LinkedList<String[]> keyValue) {
-        for(String[] tuple : keyValue) {
-            printTagStack();
-            output.print((char)attrPrefix);
-            output.print(tuple[0]);
-            output.print((char)delimiter);
-            output.println(tuple[1]);
-        }
+    public static FlatTagOptions getOptions() {
+        return FlatTagOptions.builder()
+                .delimiter(delimiter)
+                .attrPrefix(attrPrefix)
+                .attrInfix(attrInfix)
+                .lf(lf)
+                .tab(tab)
+                .ignoreAttr(ignoreAttr)
+                .attrLine(attrLine)
+                .autoClose(autoClose)
+                .skipTags(skipTags)
+                .pathFilter(paths.isEmpty() ? null : PathFilter.compile(paths))
+                .rowElement(rowElement)
+                .rowFields(rowFields)
+                .inputCharset(inputCharset)
+                .compact(compact)
+                .maxText(maxText)
+                .decodeReferences(decodeReferences)
+                .raw(raw)
+                .stats(stats)
+                .build();
     }
 
-    private static final int INNER_TAG = 0;
-    private static final int TAG_OPEN_INIT = 100;
-    private static final int TAG_OPEN = 101;
-    private static final int TAG_ATTR = 200;
-    private static final int TAG_ATTR_KEY = 201;
-    private static final int TAG_ATTR_VALUE_INIT = 202;
-    private static final int TAG_ATTR_VALUE_DOUBLE = 203;
-    private static final int TAG_ATTR_VALUE_SINGLE = 204;
-    private static final int TAG_ATTR_VALUE_NOQUOTE = 205;
-    private static final int TAG_EMPTY = 206;
-    private static final int TAG_CLOSE_INIT = 300;
-    private static final int TAG_CLOSE = 301;
-    private static final int TAG_SKIP_DEFINITION = 400;
-    private static final int TAG_SKIP_BANG = 401;
-    private static final int TAG_SKIP_BANG2 = 402;
-    private static final int TAG_SKIP_DOCTYPE = 403;
-    private static final int TAG_SKIP_COMMENT = 404;
-    private static final int TAG_SKIP_COMMENT2 = 405;
-    private static final int TAG_SKIP_COMMENT3 = 406;
-
-    private static void appendBuilder(StringBuilder builder, char ch) {
-        if(ch == '\n') {
-            builder.append(lf);
-        } else if(ch == '\t') {
-            builder.append(tab);
-        } else {
-            builder.append((char)ch);
-        }
+    public static void parseTag() throws IOException, flattag {
+        parseTag(ByteSource.of(input));
     }
 
-    private static boolean isWhitespace(int ch) {
-        return Character.isWhitespace(ch);
+    public static void parseTag(ByteSource byteSource) throws IOException, flattag {
+        parseTag(byteSource, output);
     }
 
-    private static String keyValueToString(String tagName, LinkedList<String[]> keyValue) {
-        StringBuilder builder = new StringBuilder(tagName);
+    public static void parseTag(ByteSource byteSource, Writer writer) throws IOException, flattag {
+        FlatTagParser parser = new FlatTagParser(getOptions(), byteSource, writer);
 
-        for(String[] tuple : keyValue) {
-            builder.append((char)attrPrefix);
-            builder.append(tuple[0]);
-            builder.append((char)attrInfix);
-            builder.append(tuple[1]);
-        }
-        return builder.toString();
-    }
-
-    private static void pushTagAndKeyValue(String tagName, LinkedList<String[]> keyValue) {
-        if(ignoreAttr) {
-            pushTagStack(tagName);
-        } else if(attrLine) {
-            pushTagStack(tagName);
-            printKeyValue(keyValue);
-        } else {
-            pushTagStack(tagName, keyValueToString(tagName, keyValue));
+        parser.setLineNo(lineNo);
+        parser.setSourceName(inputName);
+        try {
+            parser.parse();
+        } finally {
+            lineNo = parser.getLineNo();
         }
     }
 
-    public static void parseTag() throws IOException, flattag {
-        StringBuilder builder = new StringBuilder();
-        String[] tuple;
-        String tagName = "", key = "";
-        LinkedList<String[]> keyValue = new LinkedList<String[]>();
-        int ch, state = INNER_TAG, doctypeBrackets = 0;
-
-        while(true) {
-            if((ch = readChar()) < 0) {
-                if(state == INNER_TAG) {
-                    if(builder.length() > 0) {
-                        printText(builder.toString());
-                    }
-                    return;
-                } else {
-                    throw new flattag("unexpected EOF");
-                }
-            }
-
-            switch(state) {
-            case INNER_TAG:
-                if(ch == '<') {
-                    state = TAG_OPEN_INIT;
-                } else {
-                    appendBuilder(builder, (char)ch);
-                }
-                break;
-
-            case TAG_OPEN_INIT:
-                if(ch == '>' || ch == '<' || ch == '\"' || ch == '\'') {
-                    throw new flattag("invalid tag");
-                } else if(ch == '/') {
-                    printText(builder.toString());
-                    keyValue = new LinkedList<String[]>();
-                    builder = new StringBuilder();
-                    state = TAG_CLOSE_INIT;
-                } else if(ch == '?') {
-                    state = TAG_SKIP_DEFINITION;
-                } else if(ch == '!') {
-                    state = TAG_SKIP_BANG;
-                } else if(!isWhitespace(ch)) {
-                    if(builder.length() > 0) {
-                        printText(builder.toString());
-                    }
-                    keyValue = new LinkedList<String[]>();
-                    builder = new StringBuilder();
-                    appendBuilder(builder, (char)ch);
-                    state = TAG_OPEN;
-                }
-                break;
-
-            case TAG_OPEN:
-                if(ch == '>') {
-                    pushTagStack(builder.toString());
-                    builder = new StringBuilder();
-                    state = INNER_TAG;
-                } else if(ch == '<' || ch == '\"' || ch == '\'') {
-                    throw new flattag("invalid tag");
-                } else if(isWhitespace(ch)) {
-                    tagName = builder.toString();
-                    state = TAG_ATTR;
-                } else {
-                    appendBuilder(builder, (char)ch);
-                }
-                break;
-
-            case TAG_ATTR:
-                if(ch == '>') {
-                    pushTagAndKeyValue(tagName, keyValue);
-                    builder = new StringBuilder();
-                    state = INNER_TAG;
-                } else if(ch == '/') {
-                    state = TAG_EMPTY;
-                } else if(ch == '<' || ch == '\"' || ch == '\'') {
-                    throw new flattag("invalid attribute");
-                } else if(!isWhitespace(ch)) {
-                    builder = new StringBuilder();
-                    appendBuilder(builder, (char)ch);
-                    state = TAG_ATTR_KEY;
-                }
-                break;
-
-            case TAG_ATTR_KEY:
-                if(ch == '=') {
-                    key = builder.toString();
-                    builder = new StringBuilder();
-                    state = TAG_ATTR_VALUE_INIT;
-                } else if(ch == '>') {
-                    tuple = new String[] { builder.toString(), "" };
-                    keyValue.add(tuple);
-                    pushTagAndKeyValue(tagName, keyValue);
-                    builder = new StringBuilder();
-                    state = INNER_TAG;
-                } else if(ch == '<' || ch == '\"' || ch == '\'') {
-                    throw new flattag("invalid attribute");
-                } else if(isWhitespace(ch)) {
-                    tuple = new String[] { builder.toString(), "" };
-                    keyValue.add(tuple);
-                    state = TAG_ATTR;
-                } else {
-                    appendBuilder(builder, (char)ch);
-                }
-                break;
-
-            case TAG_ATTR_VALUE_INIT:
-                if(ch == '\"') {
-                    state = TAG_ATTR_VALUE_DOUBLE;
-                } else if(ch == '\'') {
-                    state = TAG_ATTR_VALUE_SINGLE;
-                } else if(ch == '<' || ch == '\"' || ch == '\'') {
-                    throw new flattag("invalid attribute");
-                } else if(isWhitespace(ch)) {
-                    tuple = new String[] { key, "" };
-                    keyValue.add(tuple);
-                    state = TAG_ATTR;
-                } else {
-                    appendBuilder(builder, (char)ch);
-                    state = TAG_ATTR_VALUE_NOQUOTE;
-                }
-                break;
-
-            case TAG_ATTR_VALUE_DOUBLE:
-                if(ch == '\"') {
-                    tuple = new String[] { key, builder.toString() };
-                    keyValue.add(tuple);
-                    state = TAG_ATTR;
-                } else {
-                    appendBuilder(builder, (char)ch);
-                }
-                break;
-
-            case TAG_ATTR_VALUE_SINGLE:
-                if(ch == '\'') {
-                    tuple = new String[] { key, builder.toString() };
-                    keyValue.add(tuple);
-                    state = TAG_ATTR;
-                } else {
-                    appendBuilder(builder, (char)ch);
-                }
-                break;
-
-            case TAG_ATTR_VALUE_NOQUOTE:
-                if(isWhitespace(ch)) {
-                    tuple = new String[] { key, builder.toString() };
-                    keyValue.add(tuple);
-                    state = TAG_ATTR;
-                } else if(ch == '<' || ch == '\"' || ch == '\'') {
-                    throw new flattag("invalid attribute");
-                } else if(ch == '>') {
-                    pushTagAndKeyValue(tagName, keyValue);
-                    builder = new StringBuilder();
-                    state = INNER_TAG;
-                } else {
-                    appendBuilder(builder, (char)ch);
-                }
-                break;
-
-            case TAG_EMPTY:
-                if(ch == '>') {
-                    pushTagAndKeyValue(tagName, keyValue);
-                    printText("");
-                    popTagStack(tagName);
-                    builder = new StringBuilder();
-                    state = INNER_TAG;
-                } else if(!isWhitespace(ch)) {
-                    throw new flattag("invalid empty tag");
-                }
-                break;
-
-            case TAG_CLOSE_INIT:
-                if(ch == '>') {
-                    throw new flattag("invalid close tag");
-                } else if(ch == '<' || ch == '\"' || ch == '\'') {
-                    throw new flattag("invalid close tag");
-                } else if(!isWhitespace(ch)) {
-                    appendBuilder(builder, (char)ch);
-                    state = TAG_CLOSE;
-                }
-                break;
-
-            case TAG_CLOSE:
-                if(ch == '>') {
-                    popTagStack(builder.toString());
-                    builder = new StringBuilder();
-                    state = INNER_TAG;
-                } else if(ch == '<' || ch == '\"' || ch == '\'') {
-                    throw new flattag("invalid close tag");
-                } else if(!isWhitespace(ch)) {
-                    appendBuilder(builder, (char)ch);
-                }
-                break;
-
-            case TAG_SKIP_DEFINITION:
-                if(ch == '>') {
-                    state = INNER_TAG;
-                }
-                break;
-
-            case TAG_SKIP_BANG:
-                if(ch == '-') {
-                    state = TAG_SKIP_BANG2;
-                } else if(ch == '>') {
-                    state = INNER_TAG;
-                } else {
-                    doctypeBrackets = 1;
-                    state = TAG_SKIP_DOCTYPE;
-                }
-                break;
-
-            case TAG_SKIP_BANG2:
-                if(ch == '-') {
-                    state = TAG_SKIP_COMMENT;
-                } else if(ch == '>') {
-                    state = INNER_TAG;
-                } else {
-                    doctypeBrackets = 1;
-                    state = TAG_SKIP_DOCTYPE;
-                }
-                break;
-
-            case TAG_SKIP_DOCTYPE:
-                if(ch == '>' && --doctypeBrackets == 0) {
-                    state = INNER_TAG;
-                } else if(ch == '<') {
-                    doctypeBrackets++;
-                }
-                break;
-
-            case TAG_SKIP_COMMENT:
-                if(ch == '-') {
-                    state = TAG_SKIP_COMMENT2;
-                }
-                break;
-
-            case TAG_SKIP_COMMENT2:
-                if(ch == '-') {
-                    state = TAG_SKIP_COMMENT3;
-                } else {
-                    state = TAG_SKIP_COMMENT;
-                }
-                break;
-
-            case TAG_SKIP_COMMENT3:
-                if(ch == '>') {
-                    state = INNER_TAG;
-                } else if(ch != '-') {
-                    state = TAG_SKIP_COMMENT;
-                }
-                break;
+    private static void addAutoClose(String option) {
+        String[] tags = option.split(",");
 
-            default:
-                throw new RuntimeException("Internal error");
-            }
+        for(String tag : tags) {
+            autoClose.add(tag);
         }
     }
 
-    private static void addAutoClose(String option) {
+    private static void addSkipTags(String option) {
         String[] tags = option.split(",");
 
         for(String tag : tags) {
-            autoClose.add(tag);
+            skipTags.add(tag);
         }
     }
 
-    public static final int DEFAULT_DELIMITER = '\t';
-    public static final int DEFAULT_ATTR_PREFIX = '@';
-    public static final int DEFAULT_ATTR_INFIX = '=';
-    public static final String DEFAULT_LF = " ";
-    public static final String DEFAULT_TAB = " ";
+    public static final int DEFAULT_DELIMITER = FlatTagOptions.DEFAULT_DELIMITER;
+    public static final int DEFAULT_ATTR_PREFIX = FlatTagOptions.DEFAULT_ATTR_PREFIX;
+    public static final int DEFAULT_ATTR_INFIX = FlatTagOptions.DEFAULT_ATTR_INFIX;
+    public static final String DEFAULT_LF = FlatTagOptions.DEFAULT_LF;
+    public static final String DEFAULT_TAB = FlatTagOptions.DEFAULT_TAB;
 
     public static void initOptions() {
         delimiter = DEFAULT_DELIMITER;
@@ -443,8 +162,32 @@ public class flattag extends Exception {
         ignoreAttr = false;
         attrLine = false;
         autoClose = new HashSet<String>();
+        skipTags = new HashSet<String>();
         outputFileName = null;
-        tagStack = new LinkedList<String[]>();
+        threads = 0;
+        ordered = false;
+        recordElement = null;
+        paths = new ArrayList<String>();
+        rowElement = null;
+        rowFields = new ArrayList<String>();
+        bufferSize = ByteSink.DEFAULT_BUFFER_SIZE;
+        maxText = FlatTagOptions.DEFAULT_MAX_TEXT;
+        decodeReferences = false;
+        raw = false;
+        inputCharset = null;
+        outputCharset = StandardCharsets.UTF_8;
+        compress = false;
+        pipeline = false;
+        compact = false;
+        expand = false;
+        binary = false;
+        indexFileName = null;
+        indexInterval = 0;
+        queryElement = 0;
+        checkpointFileName = null;
+        follow = false;
+        stats = null;
+        inputName = null;
         lineNo = 1;
     }
 
@@ -484,9 +227,123 @@ public class flattag extends Exception {
             } else if(args[argptr].equals("-c") && argptr < args.length - 1) {
                 addAutoClose(args[argptr + 1]);
                 argptr += 2;
+            } else if(args[argptr].equals("-x") && argptr < args.length - 1) {
+                addSkipTags(args[argptr + 1]);
+                argptr += 2;
             } else if(args[argptr].equals("-o") && argptr < args.length - 1) {
                 outputFileName = args[argptr + 1];
                 argptr += 2;
+            } else if(args[argptr].equals("-j") && argptr < args.length - 1) {
+                try {
+                    threads = Integer.parseInt(args[argptr + 1]);
+                } catch(NumberFormatException e) {
+                    return -1;
+                }
+                argptr += 2;
+            } else if(args[argptr].equals("-b") && argptr < args.length - 1) {
+                try {
+                    bufferSize = Integer.parseInt(args[argptr + 1]);
+                } catch(NumberFormatException e) {
+                    return -1;
+                }
+                if(bufferSize <= 0) {
+                    return -1;
+                }
+                argptr += 2;
+            } else if(args[argptr].equals("-m") && argptr < args.length - 1) {
+                try {
+                    maxText = Integer.parseInt(args[argptr + 1]);
+                } catch(NumberFormatException e) {
+                    return -1;
+                }
+                if(maxText <= 0) {
+                    return -1;
+                }
+                argptr += 2;
+            } else if((args[argptr].equals("-e") || args[argptr].equals("-E")) && argptr < args.length - 1) {
+                try {
+                    if(args[argptr].equals("-e")) {
+                        inputCharset = Charset.forName(args[argptr + 1]);
+                    } else {
+                        outputCharset = Charset.forName(args[argptr + 1]);
+                    }
+                } catch(IllegalArgumentException e) {
+                    return -1;
+                }
+                argptr += 2;
+            } else if(args[argptr].equals("-W") && argptr < args.length - 1) {
+                indexFileName = args[argptr + 1];
+                argptr += 2;
+            } else if(args[argptr].equals("-N") && argptr < args.length - 1) {
+                try {
+                    indexInterval = Integer.parseInt(args[argptr + 1]);
+                } catch(NumberFormatException e) {
+                    return -1;
+                }
+                if(indexInterval <= 0) {
+                    return -1;
+                }
+                argptr += 2;
+            } else if(args[argptr].equals("-Q") && argptr < args.length - 1) {
+                try {
+                    queryElement = Long.parseLong(args[argptr + 1]);
+                } catch(NumberFormatException e) {
+                    return -1;
+                }
+                if(queryElement <= 0) {
+                    return -1;
+                }
+                argptr += 2;
+            } else if(args[argptr].equals("-k") && argptr < args.length - 1) {
+                checkpointFileName = args[argptr + 1];
+                argptr += 2;
+            } else if(args[argptr].equals("-D")) {
+                decodeReferences = true;
+                argptr++;
+            } else if(args[argptr].equals("-0")) {
+                raw = true;
+                argptr++;
+            } else if(args[argptr].equals("--stats")) {
+                stats = new FlatTagStats();
+                argptr++;
+            } else if(args[argptr].equals("-T")) {
+                follow = true;
+                argptr++;
+            } else if(args[argptr].equals("-r") && argptr < args.length - 1) {
+                recordElement = args[argptr + 1];
+                argptr += 2;
+            } else if(args[argptr].equals("-p") && argptr < args.length - 1) {
+                try {
+                    PathFilter.compile(args[argptr + 1]);
+                } catch(IllegalArgumentException e) {
+                    return -1;
+                }
+                paths.add(args[argptr + 1]);
+                argptr += 2;
+            } else if(args[argptr].equals("-R") && argptr < args.length - 1) {
+                rowElement = args[argptr + 1];
+                argptr += 2;
+            } else if(args[argptr].equals("-f") && argptr < args.length - 1) {
+                rowFields.addAll(Arrays.asList(args[argptr + 1].split(",")));
+                argptr += 2;
+            } else if(args[argptr].equals("-C")) {
+                compact = true;
+                argptr++;
+            } else if(args[argptr].equals("-B")) {
+                binary = true;
+                argptr++;
+            } else if(args[argptr].equals("-X")) {
+                expand = true;
+                argptr++;
+            } else if(args[argptr].equals("-P")) {
+                pipeline = true;
+                argptr++;
+            } else if(args[argptr].equals("-z")) {
+                compress = true;
+                argptr++;
+            } else if(args[argptr].equals("-S")) {
+                ordered = true;
+                argptr++;
             } else if(args[argptr].length() > 0 && args[argptr].charAt(0) == '-') {
                 return -1;
             } else {
@@ -497,7 +354,7 @@ public class flattag extends Exception {
     }
 
     private static void usage() {
-        System.err.println("usage: flattag [options] [file]");
+        System.err.println("usage: flattag [options] [file...]");
         System.err.println();
         System.err.println("options:");
         System.err.println("-F delimiter");
@@ -512,6 +369,9 @@ public class flattag extends Exception {
         System.err.println("-c auto-close-tag-name");
         System.err.println("  Tags which close automatically if another tag is occurred are specified.");
         System.err.println("  Tags must delimited by comma.");
+        System.err.println("-x skip-tag-name,...");
+        System.err.println("  Elements of the tags and their descendants are skipped. Tags must delimited by comma.");
+        System.err.println("  The names of the tags are compared ignoring case.");
         System.err.println("-n newline-replace");
         System.err.println("  A string to which newline character is replaced is specified.");
         System.err.println("  The default is one space character.");
@@ -523,56 +383,438 @@ public class flattag extends Exception {
         System.err.println("-L");
         System.err.println("  Treats the attribute like a tag.");
         System.err.println("  The 'tag' is the name of attribute and the 'value' is the value of attribute.");
+        System.err.println("-D");
+        System.err.println("  Decodes the character references of texts and attribute values like &amp; and &#x3042;.");
+        System.err.println("-0");
+        System.err.println("  Terminates each line by NUL instead of newline and writes newlines and tabs of texts as they are.");
+        System.err.println("-j threads");
+        System.err.println("  Number of threads which flat many files. The default is the number of processors.");
+        System.err.println("-S");
+        System.err.println("  Outputs many files in the order of the arguments.");
+        System.err.println("-r record-tag-name");
+        System.err.println("  Elements of the tag are flattened in parallel by -j threads.");
+        System.err.println("-p path-pattern");
+        System.err.println("  Outputs only the lines of elements which match the pattern, e.g. table/tr/td, //td, tr/@class.");
+        System.err.println("  '//' matches any number of elements and '@attribute' matches the attribute lines of -L.");
+        System.err.println("  This option can be specified many times.");
+        System.err.println("-e input-encoding");
+        System.err.println("  Encoding of the input. A byte order mark takes precedence over it.");
+        System.err.println("  The default is the encoding of the XML declaration or UTF-8.");
+        System.err.println("-E output-encoding");
+        System.err.println("  Encoding of the output. The default is UTF-8.");
+        System.err.println("-z");
+        System.err.println("  Compresses the output by gzip. An output file whose name ends with .gz is always compressed.");
+        System.err.println("  Input files of gzip or zip are inflated regardless of this option.");
+        System.err.println("-C");
+        System.err.println("  Outputs each line as the number of chars of the path shared with the previous line,");
+        System.err.println("  the delimiter and the rest of the line. Many files are output in order like -S.");
+        System.err.println("-B");
+        System.err.println("  Outputs the binary records of the paths, texts and attributes which FlatBinaryReader reads.");
+        System.err.println("  Many files, -r and -R can not be used with this option.");
+        System.err.println("-X");
+        System.err.println("  Restores the lines of the input which is output by -C.");
+        System.err.println("-W index-file");
+        System.err.println("  Writes the index of the input file instead of the lines.");
+        System.err.println("  The elements of -r are indexed, or every -N elements if -r is not given.");
+        System.err.println("-N interval");
+        System.err.println("  Indexes every interval-th element. The default is 1 with -r and 1024 without -r.");
+        System.err.println("-Q element-number");
+        System.err.println("  Outputs only the lines of the n-th element from 1 of the index of -W, which is read instead.");
+        System.err.println("  The other options must be the ones given when the index is written.");
+        System.err.println("-k checkpoint-file");
+        System.err.println("  Writes a checkpoint of the flattening of one input file to -o output-file every 64 MiB.");
+        System.err.println("  If the checkpoint file exists, flattening resumes from it. It is removed at the end.");
+        System.err.println("-T");
+        System.err.println("  Follows one input file like tail -f and flattens the data appended to it.");
+        System.err.println("--stats");
+        System.err.println("  Prints the counters of the parsers and the time of input, parsing and output to stderr at exit.");
+        System.err.println("  The counters are the MBean flattag:type=Stats of JMX while running.");
+        System.err.println("-P");
+        System.err.println("  Reads the input and writes the output on threads other than the parser.");
+        System.err.println("-b buffer-size");
+        System.err.println("  Size of the output buffer in bytes. The default is 1048576.");
+        System.err.println("-m max-text-size");
+        System.err.println("  Bytes of a text which are buffered before its line is written in chunks. The default is 1048576.");
+        System.err.println("-R row-tag-name");
+        System.err.println("  Outputs one row per element of the tag whose fields are delimited by the delimiter.");
+        System.err.println("  Fields which contain the delimiter, quotes or newlines are quoted like CSV.");
+        System.err.println("  -r is ignored in this mode.");
+        System.err.println("-f field-tag-name,...");
+        System.err.println("  Tags or @attributes of the row tag which are the fields of a row.");
+        System.err.println("  Tags must delimited by comma.");
+    }
+
+    private static ByteSource openInput(ByteSource source) throws IOException {
+        ByteSource inflated = ByteSource.inflate(source);
+
+        return ByteSource.decode(pipeline ? ByteSource.readAhead(inflated) : inflated, inputCharset);
+    }
+
+    private static ByteSink openOutput() {
+        WritableByteChannel channel = null;
+
+        if(outputFileName != null) {
+            try {
+                channel = FileChannel.open(Paths.get(outputFileName),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            } catch(IOException e) {
+                System.err.println("Cannot open file " + outputFileName);
+                System.exit(4);
+            }
+        } else {
+            channel = new FileOutputStream(FileDescriptor.out).getChannel();
+        }
+        if(compress || (outputFileName != null && outputFileName.endsWith(".gz"))) {
+            channel = new DeflatingChannel(channel);
+        } else if(pipeline) {
+            channel = new WriteBehindChannel(channel);
+        }
+        return newSink(channel);
+    }
+
+    private static ByteSink newSink(WritableByteChannel channel) {
+        ByteSink sink = new ByteSink(channel, bufferSize, outputCharset);
+
+        sink.setStats(stats);
+        return sink;
+    }
+
+    private static int mainBatch(List<String> names) {
+        List<Path> files = null;
+
+        try {
+            files = FlatTagBatch.listFiles(names);
+        } catch(IOException e) {
+            System.err.println("Cannot read directory " + e.getMessage());
+            return 4;
+        }
+
+        ByteSink sink = openOutput();
+        int returnCode;
+
+        try {
+            // a compact line refers to the previous line of the same file
+            returnCode = new FlatTagBatch(getOptions(), sink, threads, ordered || compact).run(files);
+        } catch(IOException e) {
+            returnCode = ioError(sink, e);
+        } catch(InterruptedException e) {
+            returnCode = 4;
+        }
+        return close(sink, returnCode);
+    }
+
+    /*
+     * closes the sink and returns the return code. An error which has already been reported is not reported again.
+     */
+    private static int close(ByteSink sink, int returnCode) {
+        boolean failed = sink.hasFailed();
+
+        try {
+            sink.close();
+            return returnCode;
+        } catch(IOException e) {
+            return failed ? returnCode : ioError(sink, e);
+        }
+    }
+
+    /*
+     * an error of writing stdout is mostly a pipe closed by a command like head, so it ends flattag silently.
+     */
+    private static int ioError(ByteSink sink, IOException e) {
+        if(!sink.hasFailed()) {
+            System.err.println("Cannot read input: " + e.getMessage());
+        } else if(outputFileName != null) {
+            System.err.println("Cannot write file " + outputFileName);
+        }
+        return 4;
+    }
+
+    private static int mainExpand(List<String> names) {
+        ByteSink sink = openOutput();
+        Charset charset = inputCharset != null ? inputCharset : StandardCharsets.UTF_8;
+        int returnCode = 0;
+
+        try {
+            if(names.isEmpty()) {
+                new FlatTagExpander(new InputStreamReader(new FileInputStream(FileDescriptor.in), charset)).transferTo(sink);
+            }
+            for(String name : names) {
+                try(Reader reader = new FlatTagExpander(Files.newBufferedReader(Paths.get(name), charset))) {
+                    reader.transferTo(sink);
+                } catch(IOException e) {
+                    if(sink.hasFailed()) {
+                        throw e;
+                    }
+                    System.err.println(name + ": " + e.getMessage());
+                    returnCode = 4;
+                }
+            }
+        } catch(IOException e) {
+            returnCode = ioError(sink, e);
+        }
+        return close(sink, returnCode);
+    }
+
+    private static int mainIndex(String name) {
+        Path input = Paths.get(name);
+        int interval = indexInterval > 0 ? indexInterval : recordElement != null ? 1 : FlatTagIndex.DEFAULT_INTERVAL;
+
+        try {
+            FlatTagIndex.build(getOptions(), input, Paths.get(indexFileName), recordElement, interval);
+            return 0;
+        } catch(IOException e) {
+            System.err.println("Cannot index file " + name + ": " + e.getMessage());
+        } catch(flattag e) {
+            System.err.println(e.getMessageWithLine());
+        }
+        return 4;
+    }
+
+    private static int mainQuery(String name) {
+        FlatTagIndex index = null;
+        ByteSink sink;
+        int returnCode = 0;
+
+        try {
+            index = FlatTagIndex.open(Paths.get(indexFileName));
+        } catch(IOException e) {
+            System.err.println("Cannot open index " + indexFileName);
+            return 4;
+        }
+        if(queryElement > index.getElementCount()) {
+            System.err.println("Element " + queryElement + " is not in the index");
+            returnCode = 4;
+        } else {
+            sink = openOutput();
+            try {
+                index.query(getOptions(), Paths.get(name), queryElement - 1, sink);
+            } catch(IOException e) {
+                returnCode = ioError(sink, e);
+            } catch(flattag e) {
+                System.err.println(e.getMessageWithLine());
+                returnCode = 4;
+            }
+            returnCode = close(sink, returnCode);
+        }
+        try {
+            index.close();
+        } catch(IOException e) {
+            // the index has been read
+        }
+        return returnCode;
+    }
+
+    /*
+     * flushes the lines of the followed file while it has no more data, and takes a checkpoint when it grows.
+     */
+    private static class FollowIdle implements Flushable {
+
+        private final ByteSink sink;
+        private FlatTagParser parser;
+
+        FollowIdle(ByteSink sink) {
+            this.sink = sink;
+        }
+
+        public void flush() throws IOException {
+            sink.flush();
+            if(parser != null) {
+                parser.requestCheckpoint();
+            }
+        }
+
+    }
+
+    /*
+     * the output of a checkpoint is truncated to the size at the checkpoint and appended.
+     */
+    private static ByteSink openOutput(FlatTagCheckpoint checkpoint) {
+        FileChannel channel = null;
+
+        try {
+            channel = FileChannel.open(Paths.get(outputFileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if(checkpoint == null) {
+                channel.truncate(0);
+            } else if(channel.size() < checkpoint.getOutputOffset()) {
+                System.err.println("File " + outputFileName + " is shorter than the checkpoint");
+                System.exit(4);
+            } else {
+                channel.truncate(checkpoint.getOutputOffset());
+                channel.position(checkpoint.getOutputOffset());
+            }
+        } catch(IOException e) {
+            System.err.println("Cannot open file " + outputFileName);
+            System.exit(4);
+        }
+        return newSink(channel);
+    }
+
+    /*
+     * flattens one file which can be resumed from a checkpoint of -k or is followed by -T.
+     */
+    private static int mainResumable(String name) {
+        Path input = Paths.get(name);
+        Path checkpointPath = checkpointFileName != null ? Paths.get(checkpointFileName) : null;
+        FlatTagCheckpoint checkpoint = null;
+        ByteSource source = null;
+        ByteSink sink;
+        FollowIdle idle;
+        FlatTagParser parser;
+        int returnCode = 0;
+
+        try {
+            if(checkpointPath != null && Files.exists(checkpointPath)) {
+                checkpoint = FlatTagCheckpoint.read(checkpointPath);
+            }
+        } catch(IOException e) {
+            System.err.println("Cannot read checkpoint " + checkpointFileName);
+            return 4;
+        }
+        sink = checkpointPath != null ? openOutput(checkpoint) : openOutput();
+        idle = new FollowIdle(sink);
+        try {
+            long offset = checkpoint != null ? checkpoint.getInputOffset() : 0;
+
+            source = follow ? ByteSource.follow(input, offset, idle) : ByteSource.map(input, offset);
+            if(checkpoint == null) {
+                source = ByteSource.decode(ByteSource.inflate(source), inputCharset);
+            }
+        } catch(IOException e) {
+            System.err.println("Cannot open file " + name);
+            return close(sink, 4);
+        }
+        if(!source.isMapped()) {
+            System.err.println("Compressed or encoded file " + name + " can not be resumed nor followed");
+            returnCode = 4;
+        } else {
+            parser = new FlatTagParser(getOptions(), source, sink);
+            parser.setSourceName(name);
+            idle.parser = parser;
+            if(checkpoint != null) {
+                parser.resume(checkpoint);
+            }
+            if(checkpointPath != null) {
+                parser.setCheckpointListener(FlatTagCheckpoint.DEFAULT_INTERVAL, c -> c.write(checkpointPath));
+            }
+            try {
+                parser.parse();
+                if(checkpointPath != null) {
+                    Files.deleteIfExists(checkpointPath);
+                }
+            } catch(IOException e) {
+                returnCode = ioError(sink, e);
+            } catch(flattag e) {
+                System.err.println(e.getMessageWithLine());
+                returnCode = 4;
+            }
+        }
+        try {
+            source.close();
+        } catch(IOException e) {
+            returnCode = ioError(sink, e);
+        }
+        return close(sink, returnCode);
+    }
+
+    /*
+     * the stats are reported at exit, which is also by a signal in the follow mode.
+     */
+    private static void startStats() {
+        try {
+            stats.register();
+        } catch(JMException e) {
+            System.err.println("Cannot register MBean " + FlatTagStats.OBJECT_NAME);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> stats.report(System.err)));
     }
 
     public static void main(String[] args) {
         int returnCode = 0, argptr;
+        ByteSource byteSource = null;
 
         initOptions();
-        if((argptr = parseOption(args)) < 0) {
+        if((argptr = parseOption(args)) < 0 || (binary && (recordElement != null || rowElement != null))
+                || ((queryElement > 0 || indexInterval > 0) && indexFileName == null)
+                || (raw && (compact || expand))) {
             usage();
             System.exit(2);
         }
 
-        if(argptr < args.length) {
+        if(stats != null) {
+            startStats();
+        }
+        if(checkpointFileName != null || follow) {
+            // checkpoints truncate a file of the output which is written as it is
+            if(argptr != args.length - 1 || binary || rowElement != null || recordElement != null || expand
+                    || indexFileName != null || (checkpointFileName != null && (outputFileName == null || compress
+                    || pipeline || outputFileName.endsWith(".gz")))) {
+                usage();
+                System.exit(2);
+            }
+            System.exit(mainResumable(args[argptr]));
+        } else if(indexFileName != null) {
+            // an index is of one file which can be mapped
+            if(argptr != args.length - 1 || binary || rowElement != null || expand) {
+                usage();
+                System.exit(2);
+            }
+            System.exit(queryElement > 0 ? mainQuery(args[argptr]) : mainIndex(args[argptr]));
+        } else if(expand) {
+            System.exit(mainExpand(Arrays.asList(args).subList(argptr, args.length)));
+        } else if(argptr < args.length - 1 || (argptr < args.length && Files.isDirectory(Paths.get(args[argptr])))) {
+            if(binary) {
+                usage();
+                System.exit(2);
+            }
+            System.exit(mainBatch(Arrays.asList(args).subList(argptr, args.length)));
+        } else if(argptr < args.length) {
+            inputName = args[argptr];
             try {
-                input = new BufferedReader(new InputStreamReader(new FileInputStream(args[argptr])));
+                byteSource = openInput(ByteSource.map(Paths.get(args[argptr])));
             } catch(IOException e) {
                 System.err.println("Cannot open file " + args[argptr]);
                 System.exit(4);
             }
         } else {
-            input = new BufferedReader(new InputStreamReader(System.in));
-        }
-
-        if(outputFileName != null) {
+            inputName = "-";
             try {
-                output = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outputFileName)));
+                byteSource = openInput(ByteSource.of(new FileInputStream(FileDescriptor.in).getChannel()));
             } catch(IOException e) {
-                System.err.println("Cannot open file " + outputFileName);
+                System.err.println("Cannot read standard input");
                 System.exit(4);
             }
-        } else {
-            output = new PrintWriter(new OutputStreamWriter(System.out));
         }
 
+        ByteSink sink = openOutput();
+
         try {
-            parseTag();
+            if(binary) {
+                FlatTagParser parser = new FlatTagParser(getOptions(), byteSource, new FlatBinaryWriter(getOptions(), sink));
+
+                parser.setSourceName(inputName);
+                parser.parse();
+            } else if(recordElement != null && rowElement == null) {
+                FlatTagFanout fanout = new FlatTagFanout(getOptions(), recordElement, sink, threads);
+
+                fanout.setSourceName(inputName);
+                fanout.run(byteSource);
+            } else {
+                parseTag(byteSource, sink);
+            }
+        } catch(InterruptedException e) {
+            returnCode = 4;
         } catch(IOException e) {
-            throw new RuntimeException(e);
+            returnCode = ioError(sink, e);
         } catch(flattag e) {
             System.err.println(e.getMessageWithLine());
             returnCode = 4;
-        } finally {
-            try {
-                input.close();
-                output.close();
-            } catch(IOException e) {
-                throw new RuntimeException();
-            }
         }
-        System.exit(returnCode);
+        try {
+            byteSource.close();
+        } catch(IOException e) {
+            returnCode = ioError(sink, e);
+        }
+        System.exit(close(sink, returnCode));
     }
 
 }
-